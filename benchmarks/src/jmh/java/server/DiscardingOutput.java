@@ -0,0 +1,40 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 丢弃所有数据的响应输出，只统计字节数，用于单独测量序列化开销
+ */
+class DiscardingOutput implements ResponseOutput {
+    long bytes;
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        bytes += len;
+    }
+
+    @Override
+    public void write(ByteBuffer... buffers) {
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+            buffer.position(buffer.limit());
+        }
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) {
+        bytes += count;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void release(Closeable resource) throws IOException {
+        resource.close();
+    }
+}
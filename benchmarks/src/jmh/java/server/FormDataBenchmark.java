@@ -0,0 +1,40 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 注册和登录使用的表单解析
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormDataBenchmark {
+    private final byte[] login = "username=alice&password=s3cret".getBytes(StandardCharsets.UTF_8);
+    private final byte[] wide = ("a=1&b=2&c=3&d=4&e=5&f=6&g=7&h=8&username=alice&password=s3cret&remember=true" +
+            "&redirect=%2Findex.html").getBytes(StandardCharsets.UTF_8);
+    private final byte[] encoded = "username=alice%40example.com&password=p%C3%A4ss+word".getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public String login() {
+        FormData form = FormData.parse(login, 256);
+        return form.get("username") + form.get("password");
+    }
+
+    @Benchmark
+    public String manyFields() {
+        FormData form = FormData.parse(wide, 256);
+        return form.get("username") + form.get("password");
+    }
+
+    @Benchmark
+    public String percentEncoded() {
+        FormData form = FormData.parse(encoded, 256);
+        return form.get("username") + form.get("password");
+    }
+}
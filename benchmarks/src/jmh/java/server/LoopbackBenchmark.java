@@ -0,0 +1,165 @@
+package server;
+
+import common.HttpHead;
+import common.HttpInput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端：同一进程内启动服务器，每个基准线程通过一个长连接反复请求 GET /image 和 POST /login
+ * <p>
+ * 服务器引擎可通过 jvmArgs 中的 -Dhttp.engine=nio 切换
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+    private static final int IMAGE_SIZE = 64 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        int port;
+
+        @Setup
+        public void start() throws Exception {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            //ServerConfig在首次使用时读取端口；测量的是长连接上的稳态，不让连接在整轮测试中因请求数上限而关闭
+            System.setProperty("http.port", String.valueOf(port));
+            System.setProperty("http.keepAlive.maxRequests", String.valueOf(Integer.MAX_VALUE));
+            //postLogin 测量服务器处理登录的开销，不测量 PBKDF2 本身
+            System.setProperty("http.users.passwordIterations", "1");
+            Thread server = new Thread(() -> HttpServer.main(new String[0]), "loopback-server");
+            server.setDaemon(true);
+            server.start();
+            waitUntilListening();
+
+            byte[] image = new byte[IMAGE_SIZE];
+            new Random(42).nextBytes(image);
+            try (Client client = new Client(port)) {
+                client.exchange(client.request("POST", "/image", "image/png", image));
+                client.exchange(client.request("POST", "/register", "application/x-www-form-urlencoded",
+                        "username=bench&password=bench".getBytes(StandardCharsets.US_ASCII)));
+            }
+        }
+
+        private void waitUntilListening() throws InterruptedException {
+            for (int i = 0; i < 100; i++) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("服务器没有启动");
+        }
+    }
+
+    /**
+     * 每个基准线程一个长连接，服务器关闭连接时重新建立
+     */
+    @State(Scope.Thread)
+    public static class Client implements AutoCloseable {
+        private int port;
+        private Socket socket;
+        private HttpInput in;
+        private OutputStream out;
+        private final byte[] sink = new byte[64 * 1024];
+        private byte[] getImage;
+        private byte[] postLogin;
+
+        public Client() {
+        }
+
+        Client(int port) throws IOException {
+            connect(port);
+        }
+
+        @Setup
+        public void setup(Server server) throws IOException {
+            connect(server.port);
+            getImage = request("GET", "/image", null, null);
+            postLogin = request("POST", "/login", "application/x-www-form-urlencoded",
+                    "username=bench&password=bench".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void connect(int port) throws IOException {
+            this.port = port;
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new HttpInput(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        byte[] request(String method, String path, String contentType, byte[] body) {
+            StringBuilder head = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: 127.0.0.1\r\nConnection: keep-alive\r\n");
+            if (body != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n")
+                        .append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            byte[] headBytes = head.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+            if (body == null) {
+                return headBytes;
+            }
+            byte[] request = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+            System.arraycopy(body, 0, request, headBytes.length, body.length);
+            return request;
+        }
+
+        /**
+         * 发送请求并读完响应，返回状态码
+         */
+        int exchange(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+            HttpHead head = in.readHead(64 * 1024);
+            if (head == null) {
+                throw new IOException("连接被服务器关闭");
+            }
+            long remaining = head.contentLength();
+            while (remaining > 0) {
+                int n = in.read(sink, 0, (int) Math.min(sink.length, remaining));
+                if (n < 0) {
+                    throw new IOException("响应体不完整");
+                }
+                remaining -= n;
+            }
+            if ("close".equalsIgnoreCase(head.header("Connection"))) {
+                socket.close();
+                connect(port);
+            }
+            return head.statusCode();
+        }
+
+        @TearDown
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int getImage(Client client) throws IOException {
+        return client.exchange(client.getImage);
+    }
+
+    @Benchmark
+    public int postLogin(Client client) throws IOException {
+        return client.exchange(client.postLogin);
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import common.HttpInput;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求行和请求头的解析：典型浏览器请求与带大量头部的请求
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParseBenchmark {
+    private byte[] typical;
+    private byte[] headerHeavy;
+
+    @Setup
+    public void setup() {
+        typical = ("GET /image HTTP/1.1\r\n" +
+                "Host: localhost:8080\r\n" +
+                "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 Chrome/120.0 Safari/537.36\r\n" +
+                "Accept: image/avif,image/webp,*/*\r\n" +
+                "Accept-Encoding: gzip, deflate, br\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        StringBuilder heavy = new StringBuilder("POST /login HTTP/1.1\r\nHost: localhost:8080\r\n");
+        for (int i = 0; i < 40; i++) {
+            heavy.append("X-Custom-Header-").append(i).append(": value-").append(i).append("-abcdefghijklmnopqrstuvwxyz\r\n");
+        }
+        heavy.append("Cookie: ").append("session=0123456789abcdef; ".repeat(20)).append("\r\n");
+        heavy.append("Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 0\r\n\r\n");
+        headerHeavy = heavy.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public void typical(Blackhole blackhole) throws IOException {
+        parse(typical, blackhole);
+    }
+
+    @Benchmark
+    public void headerHeavy(Blackhole blackhole) throws IOException {
+        parse(headerHeavy, blackhole);
+    }
+
+    private static void parse(byte[] bytes, Blackhole blackhole) throws IOException {
+        HttpRequest request = new HttpRequest(new HttpInput(new ByteArrayInputStream(bytes)));
+        //路由和连接管理实际会读取的字段
+        blackhole.consume(request.getMethod());
+        blackhole.consume(request.getPath());
+        blackhole.consume(request.isKeepAlive());
+        blackhole.consume(request.getContentLength());
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 响应头序列化与写出，输出目标丢弃数据，只测量 HttpResponse.send 本身
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseWriteBenchmark {
+    private final DiscardingOutput output = new DiscardingOutput();
+    private final byte[] json = "{\"success\": true, \"message\": \"登录成功\"}".getBytes();
+
+    @Benchmark
+    public long smallJson() {
+        HttpResponse response = new HttpResponse(output);
+        response.setSampled(false);
+        response.setKeepAlive(true);
+        response.setContentType("text/html; charset=utf-8");
+        response.setBody(json);
+        response.send();
+        return output.bytes;
+    }
+
+    @Benchmark
+    public long notModified() {
+        HttpResponse response = new HttpResponse(output);
+        response.setSampled(false);
+        response.setKeepAlive(true);
+        response.setHeader("Last-Modified", "Sat, 17 Oct 2026 06:55:44 GMT");
+        response.setHeader("ETag", "\"8d408c7e9b0b6396be9f775bca88c0e707dc919be864d8d29c762aae17f5446d\"");
+        response.sendNotModified();
+        return output.bytes;
+    }
+}
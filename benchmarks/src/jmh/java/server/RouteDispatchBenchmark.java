@@ -0,0 +1,80 @@
+package server;
+
+import common.HttpInput;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由匹配：现有接口加上数百个模拟路由，分别测静态路径、带参数路径和未命中
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteDispatchBenchmark {
+    @Param({"10", "300"})
+    public int routeCount;
+
+    private RouteTable routes;
+    private Blackhole blackhole;
+    private HttpRequest staticRequest;
+    private HttpRequest paramRequest;
+    private HttpRequest missRequest;
+    private final DiscardingOutput output = new DiscardingOutput();
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        routes = new RouteTable();
+        RouteHandler handler = (request, response) -> this.blackhole.consume(request);
+        routes.get("/", handler);
+        routes.post("/register", handler);
+        routes.post("/login", handler);
+        routes.get("/image", handler);
+        routes.post("/image", handler);
+        for (int i = 0; i < routeCount; i++) {
+            routes.get("/api/v1/resource" + i + "/{id}", handler);
+            routes.get("/api/v1/resource" + i + "/{id}/items", handler);
+        }
+
+        staticRequest = request("GET /image HTTP/1.1");
+        paramRequest = request("GET /api/v1/resource" + (routeCount - 1) + "/42/items?page=1 HTTP/1.1");
+        missRequest = request("GET /api/v2/unknown HTTP/1.1");
+    }
+
+    private static HttpRequest request(String requestLine) throws IOException {
+        byte[] bytes = (requestLine + "\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        HttpRequest request = new HttpRequest(new HttpInput(new ByteArrayInputStream(bytes)));
+        //路径只解析一次，基准只测匹配本身
+        request.getPath();
+        return request;
+    }
+
+    private HttpResponse response() {
+        HttpResponse response = new HttpResponse(output);
+        response.setSampled(false);
+        return response;
+    }
+
+    @Benchmark
+    public void staticPath() {
+        routes.dispatch(staticRequest, response());
+    }
+
+    @Benchmark
+    public void paramPath() {
+        routes.dispatch(paramRequest, response());
+    }
+
+    @Benchmark
+    public void notFound() {
+        routes.dispatch(missRequest, response());
+    }
+}
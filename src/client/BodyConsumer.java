@@ -0,0 +1,20 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * 流式接收200和206响应的消息体，其他状态的响应体仍读入内存
+ */
+@FunctionalInterface
+interface BodyConsumer {
+    /**
+     * 响应头已解析、消息体开始之前调用，可以根据状态码和响应头准备目标
+     */
+    default void begin(HttpResponse response) throws IOException {
+    }
+
+    /**
+     * 接收一段消息体，buffer 在返回后会被复用
+     */
+    void accept(byte[] buffer, int offset, int length) throws IOException;
+}
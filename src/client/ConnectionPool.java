@@ -0,0 +1,252 @@
+package client;
+
+import common.HttpInput;
+import common.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按源（主机和端口）划分的长连接池
+ * <p>
+ * 每个源的连接数（使用中加空闲）不超过上限，达到上限时等待其他线程归还；
+ * 空闲连接后进先出复用，超过空闲时间的由后台线程关闭；空闲较久的连接复用前先探测对端是否已关闭
+ */
+class ConnectionPool implements AutoCloseable {
+    //空闲超过该时间的连接在复用前做一次探测
+    private static final long STALE_CHECK_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxPerHost;
+    private final long idleTimeoutNanos;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Map<Origin, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * 池中的一个连接，同一时刻只被一个线程使用
+     */
+    static final class Connection {
+        final Origin origin;
+        final Socket socket;
+        final HttpInput in;
+        final OutputStream out;
+        long idleSince;
+        //是否从池中复用，复用连接上的失败可以在新连接上重试
+        boolean reused;
+
+        Connection(Origin origin, Socket socket) throws IOException {
+            this.origin = origin;
+            this.socket = socket;
+            this.in = new HttpInput(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        /**
+         * 空闲期间对端可能已关闭连接，或者发来了不该有的数据，这样的连接不能复用
+         */
+        boolean isStale(int readTimeout) {
+            if (socket.isClosed() || in.buffered() > 0) {
+                return true;
+            }
+            try {
+                socket.setSoTimeout(1);
+                try {
+                    //超时说明连接仍然打开且没有数据；读到数据或EOF都说明连接已不可用
+                    in.read();
+                    return true;
+                } finally {
+                    socket.setSoTimeout(readTimeout);
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 一个源的连接：permits 限制连接总数，idle 为空闲连接栈
+     */
+    private final class HostPool {
+        final Semaphore permits = new Semaphore(maxPerHost);
+        final Deque<Connection> idle = new ArrayDeque<>();
+        //临界区很短，使用ReentrantLock以免固定虚拟线程
+        final ReentrantLock lock = new ReentrantLock();
+
+        Connection pollIdle() {
+            lock.lock();
+            try {
+                return idle.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void pushIdle(Connection connection) {
+            lock.lock();
+            try {
+                idle.addFirst(connection);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void evictIdle(long now) {
+            lock.lock();
+            try {
+                //栈底是最久未用的连接
+                Iterator<Connection> iterator = idle.descendingIterator();
+                while (iterator.hasNext()) {
+                    Connection connection = iterator.next();
+                    if (now - connection.idleSince < idleTimeoutNanos) {
+                        break;
+                    }
+                    iterator.remove();
+                    connection.close();
+                    permits.release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeAll() {
+            lock.lock();
+            try {
+                Connection connection;
+                while ((connection = idle.pollFirst()) != null) {
+                    connection.close();
+                    permits.release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    ConnectionPool(int maxPerHost, long idleTimeoutMillis, int connectTimeout, int readTimeout) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("connection-evictor").factory());
+        long period = Math.max(100, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取得到源的连接：优先复用空闲连接，否则在连接数上限内新建，都不行时最多等待连接超时时间
+     *
+     * @param fresh 为true时关闭所有空闲连接并新建连接，用于复用连接失败后的重试
+     */
+    Connection acquire(Origin origin, boolean fresh) throws IOException {
+        HostPool pool = pools.computeIfAbsent(origin, o -> new HostPool());
+        if (fresh) {
+            //一个空闲连接失效时（例如服务器重启），其余空闲连接通常也已失效
+            pool.closeAll();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        while (true) {
+            if (!fresh) {
+                Connection connection = pollUsable(pool);
+                if (connection != null) {
+                    return connection;
+                }
+            } else {
+                pool.closeAll();
+            }
+            try {
+                //空闲连接也占用名额，短暂等待后重新检查是否有连接被归还
+                if (pool.permits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待连接时被中断", e);
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("等待到 " + origin + " 的空闲连接超时");
+            }
+        }
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(origin.host(), origin.port()), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            Log.debug("已连接 {}", origin);
+            return new Connection(origin, socket);
+        } catch (IOException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    private Connection pollUsable(HostPool pool) {
+        Connection connection;
+        long now = System.nanoTime();
+        while ((connection = pool.pollIdle()) != null) {
+            long idleNanos = now - connection.idleSince;
+            if (idleNanos < idleTimeoutNanos
+                    && (idleNanos < STALE_CHECK_AFTER_NANOS || !connection.isStale(readTimeout))) {
+                connection.reused = true;
+                return connection;
+            }
+            connection.close();
+            pool.permits.release();
+        }
+        return null;
+    }
+
+    /**
+     * 归还连接，reusable 为false时关闭连接
+     */
+    void release(Connection connection, boolean reusable) {
+        HostPool pool = pools.get(connection.origin);
+        if (reusable && !connection.socket.isClosed()) {
+            connection.idleSince = System.nanoTime();
+            connection.reused = false;
+            pool.pushIdle(connection);
+        } else {
+            connection.close();
+            pool.permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (HostPool pool : pools.values()) {
+            pool.evictIdle(now);
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        for (HostPool pool : pools.values()) {
+            pool.closeAll();
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package client;
+
+import common.HttpDate;
+import common.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 客户端的HTTP磁盘缓存，按总字节数限制大小，LRU淘汰
+ * <p>
+ * 响应体保存在 bodies 目录，文件名为强ETag的哈希（没有强ETag时为内容哈希），
+ * 同一ETag的内容只保存一份，多个URL可以共用。元数据的变化（保存、淘汰、重新验证）追加到日志文件，
+ * 每条响应只写一条小记录；日志记录数超过条目数时才按LRU顺序重写整个索引并清空日志，关闭时也重写一次以保存访问顺序。
+ * 启动时读入索引后重放日志。
+ * 新鲜度按 Cache-Control: max-age、Expires 计算，都没有时按 Last-Modified 启发式估计，
+ * 未过期的条目不发送请求直接使用，过期后带上验证头重新验证
+ */
+class DiskCache implements AutoCloseable {
+    /**
+     * 缓存目录和总字节数上限
+     */
+    static final String DIR = System.getProperty("client.cache.dir", "cache");
+    static final long MAX_BYTES = Long.getLong("client.cache.maxBytes", 256L * 1024 * 1024);
+
+    private static final String INDEX_FILE = "index";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String BODIES_DIR = "bodies";
+    //索引文件头：HCC1
+    private static final int INDEX_MAGIC = 0x48434331;
+    //日志记录类型
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_EXPIRES = 3;
+    //日志记录数超过此值且超过条目数时重写索引
+    private static final int MIN_COMPACT_RECORDS = 1024;
+    //启发式新鲜度的上限
+    private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final Path directory;
+    private final Path bodies;
+    private final long maxBytes;
+
+    //访问顺序的LinkedHashMap实现LRU
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //每个响应体文件被多少条目引用，只有不再被引用时才删除文件、扣除大小
+    private final Map<String, Integer> references = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentBytes;
+    //以下由锁保护；journal 在启动时第一次重写索引后才打开，加载期间的淘汰不写日志
+    private FileChannel journal;
+    private int journalRecords;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+    /**
+     * 缓存条目，过期时间在重新验证后更新
+     */
+    static final class Entry {
+        final String key;
+        final String bodyName;
+        final long size;
+        final String eTag;
+        final String lastModified;
+        final String contentType;
+        volatile long expiresAt;
+
+        Entry(String key, String bodyName, long size, String eTag, String lastModified, String contentType,
+              long expiresAt) {
+            this.key = key;
+            this.bodyName = bodyName;
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * 过期的条目发送条件请求，服务器返回304时继续使用
+         */
+        void addConditionalHeaders(HttpRequest request) {
+            if (eTag != null) {
+                request.setHeader("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                request.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+    }
+
+    private DiskCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.bodies = directory.resolve(BODIES_DIR);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 打开目录下的缓存，读入索引并重放日志后合并为新的索引，删除索引之外的响应体文件
+     */
+    static DiskCache open(Path directory, long maxBytes) throws IOException {
+        DiskCache cache = new DiskCache(directory, maxBytes);
+        Files.createDirectories(cache.bodies);
+        cache.loadIndex();
+        cache.compact();
+        cache.removeOrphans();
+        Log.info("已加载{}条缓存，共{}字节", cache.entries.size(), cache.currentBytes);
+        return cache;
+    }
+
+    Entry get(String key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Path pathOf(Entry entry) {
+        return bodies.resolve(entry.bodyName);
+    }
+
+    byte[] read(Entry entry) throws IOException {
+        return Files.readAllBytes(pathOf(entry));
+    }
+
+    /**
+     * 保存200响应，不允许缓存（no-store）时返回null
+     */
+    Entry put(String key, Map<String, String> headers, byte[] body) throws IOException {
+        if (body == null || body.length > maxBytes || hasDirective(headers.get("Cache-Control"), "no-store")) {
+            return null;
+        }
+        String eTag = headers.get("ETag");
+        String bodyName = eTag != null && !eTag.startsWith("W/")
+                ? hash(eTag.getBytes(StandardCharsets.UTF_8)) : hash(body);
+        Path bodyPath = bodies.resolve(bodyName);
+        Entry entry = new Entry(key, bodyName, body.length, eTag, headers.get("Last-Modified"),
+                headers.get("Content-Type"), expiresAt(headers, System.currentTimeMillis()));
+
+        lock.lock();
+        try {
+            if (!references.containsKey(bodyName)) {
+                Path temp = Files.createTempFile(directory, "body-", ".tmp");
+                try {
+                    Files.write(temp, body);
+                    Files.move(temp, bodyPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            //先增加新条目的引用，内容未变时旧条目释放后文件仍然保留
+            retain(entry);
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                release(previous);
+            }
+            logPut(entry);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * 服务器返回304后按304的头和缓存的 Last-Modified 重新计算过期时间
+     */
+    void revalidated(Entry entry, Map<String, String> headers) throws IOException {
+        Map<String, String> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (entry.lastModified != null) {
+            merged.put("Last-Modified", entry.lastModified);
+        }
+        merged.putAll(headers);
+        entry.expiresAt = expiresAt(merged, System.currentTimeMillis());
+        lock.lock();
+        try {
+            //条目可能已被淘汰或替换，此时不记录
+            if (entries.get(entry.key) == entry) {
+                logExpires(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            //保存最近的访问顺序
+            compact();
+        } catch (IOException e) {
+            Log.warn("保存缓存索引失败：{}", e.getMessage());
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.warn("关闭缓存日志失败：{}", e.getMessage());
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 响应的过期时间：no-cache 为立即过期；max-age 优先于 Expires；
+     * 都没有时取距 Last-Modified 时长的十分之一，最多一天。减去 Age 头表示的已缓存时间
+     */
+    static long expiresAt(Map<String, String> headers, long now) {
+        String cacheControl = headers.get("Cache-Control");
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+        long date = HttpDate.parse(headers.get("Date"));
+        if (date < 0) {
+            date = now;
+        }
+        long lifetime;
+        long maxAge = maxAge(cacheControl);
+        if (maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else if (headers.get("Expires") != null) {
+            //无法解析的 Expires 表示已过期
+            long expires = HttpDate.parse(headers.get("Expires"));
+            lifetime = expires < 0 ? 0 : expires - date;
+        } else {
+            long lastModified = HttpDate.parse(headers.get("Last-Modified"));
+            lifetime = lastModified < 0 ? 0 : Math.min((date - lastModified) / 10, MAX_HEURISTIC_MILLIS);
+        }
+        long age = 0;
+        try {
+            String ageHeader = headers.get("Age");
+            if (ageHeader != null) {
+                age = Long.parseLong(ageHeader.trim()) * 1000;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return lifetime <= age ? 0 : now + lifetime - age;
+    }
+
+    private static boolean hasDirective(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String directive : cacheControl.split(",")) {
+            String token = directive.trim();
+            int equals = token.indexOf('=');
+            if ((equals < 0 ? token : token.substring(0, equals).trim()).equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cache-Control 中的 max-age 秒数，没有或格式错误时返回-1
+     */
+    private static long maxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String directive : cacheControl.split(",")) {
+            String token = directive.trim();
+            int equals = token.indexOf('=');
+            if (equals > 0 && token.substring(0, equals).trim().equalsIgnoreCase("max-age")) {
+                String value = token.substring(equals + 1).trim().replace("\"", "");
+                try {
+                    return Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 调用方持有锁
+     */
+    private void retain(Entry entry) {
+        if (references.merge(entry.bodyName, 1, Integer::sum) == 1) {
+            currentBytes += entry.size;
+        }
+    }
+
+    /**
+     * 调用方持有锁
+     */
+    private void release(Entry entry) {
+        if (references.merge(entry.bodyName, -1, Integer::sum) > 0) {
+            return;
+        }
+        references.remove(entry.bodyName);
+        currentBytes -= entry.size;
+        try {
+            Files.deleteIfExists(pathOf(entry));
+        } catch (IOException e) {
+            Log.warn("删除缓存文件失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 调用方持有锁
+     */
+    private void evict() throws IOException {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            release(eldest);
+            logRemove(eldest);
+            Log.info("缓存已满，淘汰：{}", eldest.key);
+        }
+    }
+
+    private void logPut(Entry entry) throws IOException {
+        record.writeByte(OP_PUT);
+        writeEntry(record, entry);
+        appendRecord();
+    }
+
+    private void logRemove(Entry entry) throws IOException {
+        record.writeByte(OP_REMOVE);
+        record.writeUTF(entry.key);
+        appendRecord();
+    }
+
+    private void logExpires(Entry entry) throws IOException {
+        record.writeByte(OP_EXPIRES);
+        record.writeUTF(entry.key);
+        record.writeLong(entry.expiresAt);
+        appendRecord();
+    }
+
+    /**
+     * 把 record 中的内容作为一条日志记录（长度 + 内容 + CRC32）追加到日志，记录过多时重写索引。调用方持有锁
+     */
+    private void appendRecord() throws IOException {
+        byte[] payload = recordBuffer.toByteArray();
+        recordBuffer.reset();
+        if (journal == null) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        if (++journalRecords > Math.max(MIN_COMPACT_RECORDS, entries.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * 按LRU顺序（最久未使用的在前）写出索引，通过原子重命名替换旧索引后清空日志。
+     * 重命名后、清空前崩溃时，下次启动会在新索引上重放旧日志，结果与日志记录的最终状态相同。调用方持有锁
+     */
+    private void compact() throws IOException {
+        Path temp = Files.createTempFile(directory, "index-", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    writeEntry(out, entry);
+                }
+            }
+            Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (journal == null) {
+            journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        journal.truncate(0);
+        journal.position(0);
+        journalRecords = 0;
+    }
+
+    /**
+     * 读入索引并重放日志，响应体文件已丢失的条目被跳过；索引损坏时丢弃索引中的所有条目
+     */
+    private void loadIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(INDEX_FILE))))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("缓存索引格式错误");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = readEntry(in);
+                entries.put(entry.key, entry);
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException e) {
+            Log.warn("缓存索引已损坏，清空缓存：{}", e.getMessage());
+            entries.clear();
+        }
+        replayJournal();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (Files.isRegularFile(pathOf(entry)) && Files.size(pathOf(entry)) == entry.size) {
+                retain(entry);
+            } else {
+                iterator.remove();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * 按顺序应用日志记录，从第一条不完整或校验失败的记录处停止，其后的内容在重写索引时丢弃
+     */
+    private void replayJournal() throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(directory.resolve(JOURNAL_FILE));
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt(buffer.position());
+            int start = buffer.position() + 4;
+            if (length < 0 || length > buffer.remaining() - 8) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, start, length);
+            if ((int) crc.getValue() != buffer.getInt(start + length)) {
+                break;
+            }
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(data, start, length)));
+            } catch (IOException e) {
+                break;
+            }
+            buffer.position(start + length + 4);
+        }
+        if (buffer.hasRemaining()) {
+            Log.warn("缓存日志末尾有{}字节无效的记录，已丢弃", buffer.remaining());
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case OP_PUT -> {
+                Entry entry = readEntry(in);
+                entries.put(entry.key, entry);
+            }
+            case OP_REMOVE -> entries.remove(in.readUTF());
+            case OP_EXPIRES -> {
+                Entry entry = entries.get(in.readUTF());
+                long expiresAt = in.readLong();
+                if (entry != null) {
+                    entry.expiresAt = expiresAt;
+                }
+            }
+            default -> throw new IOException("缓存日志格式错误");
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.key);
+        out.writeUTF(entry.bodyName);
+        out.writeLong(entry.size);
+        writeNullable(out, entry.eTag);
+        writeNullable(out, entry.lastModified);
+        writeNullable(out, entry.contentType);
+        out.writeLong(entry.expiresAt);
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        return new Entry(in.readUTF(), in.readUTF(), in.readLong(), readNullable(in),
+                readNullable(in), readNullable(in), in.readLong());
+    }
+
+    private void removeOrphans() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(bodies)) {
+            for (Path file : files) {
+                if (!references.containsKey(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package client;
 
-import java.io.*;
-import java.net.Socket;
+import common.HttpInput;
+import common.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -9,9 +15,6 @@ import java.util.Scanner;
 public class HttpClient {
     static final String host = "localhost";
     static final int port = 8080;
-    private static final int MAX_REDIRECTS = 5;
-    private static int redirectCount = 0;
-    static final Map<String, CachedResponse> responseCache = new HashMap<> ();
 
     static final Map<String, String> MIME_TYPES = new HashMap<>();
     static {
@@ -20,73 +23,115 @@ public class HttpClient {
         MIME_TYPES.put("png", "image/png");
     }
 
+    /**
+     * 默认为交互模式；第一个参数为 load 时进入压测模式，参数见 {@link LoadConfig}
+     */
     public static void main(String[] args) {
+        if (args.length > 0 && "load".equalsIgnoreCase(args[0])) {
+            LoadGenerator.run();
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
-        System.out.println("正在连接 " + host + ":" + port);
+        Origin origin = new Origin(host, port);
+        Log.info("服务器地址 {}", origin);
+        Log.info("按下回车以获取帮助");
 
-        try (Socket socket = new Socket(host, port);
-             OutputStream out = socket.getOutputStream();
-             InputStream in = socket.getInputStream()) {
-            System.out.println("连接成功！");
-            System.out.println("按下回车以获取帮助");
-            while (true) {
+        try (PooledHttpClient client = new PooledHttpClient();
+             DiskCache cache = DiskCache.open(Paths.get(DiskCache.DIR), DiskCache.MAX_BYTES)) {
+            while (scanner.hasNextLine()) {
                 String input = scanner.nextLine();
                 String[] parts = input.split(" ", 3);
                 String method = (parts[0].isEmpty() ? "GET" : parts[0].toUpperCase());
                 String path = parts.length > 1 ? parts[1].toLowerCase() : "/";
                 String body = parts.length > 2 ? parts[2] : null;
-                executeRequest(out, in, method, path, body);
+                try {
+                    executeRequest(client, cache, origin, method, path, body);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.warn("请求失败：{}", e.getMessage());
+                }
             }
         } catch (IOException e) {
-            System.out.println("连接失败：" + e.getMessage());
-            throw new RuntimeException(e);
+            Log.error("打开缓存失败：{}", e.getMessage());
         }
     }
 
-    private static void executeRequest(OutputStream out, InputStream in, String method, String path, String body) {
-
+    /**
+     * GET 请求先查缓存：未过期的直接使用，不发送请求；过期的带上验证头，收到304时继续使用缓存内容
+     */
+    private static void executeRequest(PooledHttpClient client, DiskCache cache, Origin origin, String method,
+                                       String path, String body) throws IOException {
+        if ("DOWNLOAD".equals(method)) {
+            download(client, origin, path, body);
+            return;
+        }
         HttpRequest request = new HttpRequest(method, path, body == null ? null : body.getBytes());
-        request.send(out);
-        HttpResponse response = new HttpResponse(in);
-
-        System.out.println("\n服务器响应：\n" + response);
+        String cacheKey = "GET".equals(method) ? "http://" + origin + path : null;
+        DiskCache.Entry cached = cacheKey == null ? null : cache.get(cacheKey);
+        if (cached != null && cached.isFresh()) {
+            Log.info("缓存未过期，未发送请求：{}（{}秒后过期）\n{}", cacheKey,
+                    (cached.expiresAt - System.currentTimeMillis()) / 1000, describe(cache, cached));
+            return;
+        }
+        if (cached != null) {
+            cached.addConditionalHeaders(request);
+        }
 
-        if (response.statusCode == 301 || response.statusCode == 302) {
-            String location = response.headers.get("Location");
-            if (redirectCount < MAX_REDIRECTS) {
-                //由于仅针对本地固定服务器，忽略了重定向至其他主机或端口时需新建Socket的情况
-                executeRequest(out, in, method, location, body);
-                redirectCount++;
-            } else {
-                System.out.println("重定向次数过多，已停止重定向。");
+        HttpResponse response = client.exchange(origin, request);
+        if (response.statusCode == 200 && cacheKey != null) {
+            DiskCache.Entry stored = cache.put(cacheKey, response.headers, response.body);
+            if (stored != null) {
+                response.savedFilePath = cache.pathOf(stored).toAbsolutePath().toString();
             }
+        }
+
+        Log.info("服务器响应：\n{}", response);
+
+        if (PooledHttpClient.isRedirect(response.statusCode) && response.headers.get("Location") != null) {
+            //按绝对地址跳转，其他主机或端口使用各自的连接
+            URI location = URI.create("http://" + origin + path).resolve(response.headers.get("Location"));
+            Log.info("重定向至 {}", location);
+            HttpResponse redirected = client.execute(method, location, request.getBody());
+            Log.info("服务器响应：\n{}", redirected);
         } else if (response.statusCode == 304) {
-            String cacheKey = method + ":" + path;
-            CachedResponse cached = responseCache.get(cacheKey);
             if (cached != null) {
-                response.body = cached.body;
-                response.savedFilePath = cached.savedFilePath;
+                cache.revalidated(cached, response.headers);
+                Log.info("缓存已重新验证：{}\n{}", cacheKey, describe(cache, cached));
             } else {
-                System.out.println("收到304响应，但未找到缓存内容");
+                Log.info("收到304响应，但未找到缓存内容");
             }
-        } else if (response.statusCode == 200 && "GET".equals(method) && "/image".equals(path)) {
-            String cacheKey = method + ":" + path;
-            CachedResponse cached = new CachedResponse();
-            cached.body = response.body;
-            cached.savedFilePath = response.savedFilePath;
-            cached.lastModified = response.headers.get("Last-Modified");
-            cached.eTag = response.headers.get("ETag");
-
-            responseCache.put(cacheKey, cached);
-            System.out.println("\n已缓存响应：" + cacheKey + "\n");
         }
     }
 
-    static class CachedResponse {
-        byte[] body;
-        String savedFilePath;
-        String lastModified;
-        String eTag;
+    /**
+     * DOWNLOAD 路径 [文件]：把资源流式下载到文件，默认保存为 images/saved/路径最后一段，中断后可再次执行续传
+     */
+    private static void download(PooledHttpClient client, Origin origin, String path, String file)
+            throws IOException {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        Path target = Paths.get(file != null ? file : "images/saved/" + (name.isEmpty() ? "index" : name));
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        long[] reported = {-1};
+        HttpResponse response = client.download(URI.create("http://" + origin + path), target, (received, total) -> {
+            //每10%报告一次进度，总长度未知时每10MB报告一次
+            long step = total > 0 ? Math.max(total / 10, 1) : 10L * 1024 * 1024;
+            if (received / step != reported[0] || received == total) {
+                reported[0] = received / step;
+                Log.info("已下载 {}{}", received, total > 0 ? " / " + total + " 字节" : " 字节");
+            }
+        });
+        Log.info("服务器响应：\n{}", response);
     }
 
-}
\ No newline at end of file
+    /**
+     * 缓存内容的摘要：文本显示内容，其他类型显示文件位置
+     */
+    private static Object describe(DiskCache cache, DiskCache.Entry entry) throws IOException {
+        String contentType = entry.contentType;
+        if (contentType != null && !contentType.startsWith("image/")) {
+            return Log.body(cache.read(entry), contentType);
+        }
+        return "[文件已保存到: " + cache.pathOf(entry).toAbsolutePath() + "]";
+    }
+}
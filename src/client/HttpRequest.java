@@ -1,5 +1,6 @@
 package client;
 
+import common.Log;
 import lombok.Getter;
 
 import java.io.IOException;
@@ -17,33 +18,51 @@ class HttpRequest {
     private final Map<String, String> headers;
     private byte[] body;
 
+    /**
+     * 交互模式使用的请求：POST /image 的请求体为本地文件路径
+     */
     public HttpRequest(String method, String path, byte[] body) {
+        this(method, path, uploadBody(method, path, body), HttpClient.host, HttpClient.port);
+        if (isImageUpload(method, path)) {
+            setContentType("image/png");
+        }
+    }
+
+    /**
+     * 通用请求，target 为请求目标（路径加查询字符串），host 和 port 用于Host头
+     */
+    HttpRequest(String method, String target, byte[] body, String host, int port) {
         this.headers = new HashMap<>();
 
         this.method = method;
-        this.path = path;
-
-        if ("POST".equalsIgnoreCase(method) && path.equals("/image")) {
-            try {
-                String filePath = new String(body, StandardCharsets.UTF_8);
-                body = Files.readAllBytes(Paths.get(filePath));
-                setContentType("image/png");
-            } catch (IOException e) {
-                System.out.println("读取文件失败：" + e.getMessage());
-                throw new RuntimeException(e);
-            }
-        }
+        this.path = target;
 
         if (body != null) {
             this.body = body;
             setHeader("Content-Length", String.valueOf(body.length));
         }
 
-        setHost(HttpClient.host, HttpClient.port);
+        setHost(host, port);
         setUserAgent("HttpClient/1.0");
         setKeepAlive(true);
+        setHeader("Accept-Encoding", "gzip, deflate");
+    }
 
-        addConditionalHeaders();
+    private static boolean isImageUpload(String method, String path) {
+        return "POST".equalsIgnoreCase(method) && path.equals("/image");
+    }
+
+    private static byte[] uploadBody(String method, String path, byte[] body) {
+        if (!isImageUpload(method, path)) {
+            return body;
+        }
+        try {
+            String filePath = new String(body, StandardCharsets.UTF_8);
+            return Files.readAllBytes(Paths.get(filePath));
+        } catch (IOException e) {
+            Log.warn("读取文件失败：{}", e.getMessage());
+            throw new RuntimeException(e);
+        }
     }
 
     public void setHeader(String key, String value) {
@@ -66,25 +85,6 @@ class HttpRequest {
         setHeader("Connection", keepAlive ? "keep-alive" : "close");
     }
 
-    private void addConditionalHeaders() {
-        if (!"GET".equals(method) || !"/image".equals(path)) {
-            return;
-        }
-
-        String cacheKey = method + ":" + path;
-        HttpClient.CachedResponse cached = HttpClient.responseCache.get(cacheKey);
-
-        if (cached != null) {
-            if (cached.lastModified != null) {
-                setHeader("If-Modified-Since", cached.lastModified);
-            }
-
-            if (cached.eTag != null) {
-                setHeader("If-None-Match", cached.eTag);
-            }
-        }
-    }
-
     public String toString() {
         StringBuilder request = new StringBuilder(method + " " + path + " HTTP/1.1\r\n");
         for (Map.Entry<String, String> header : headers.entrySet()) {
@@ -96,21 +96,24 @@ class HttpRequest {
         return request.toString();
     }
 
-    public void send(OutputStream out) {
-        try {
-            out.write(toString().getBytes(StandardCharsets.UTF_8));
+    /**
+     * 写出请求，错误以 IOException 抛出，供连接池判断连接是否可用
+     */
+    void send(OutputStream out) throws IOException {
+        writeTo(out);
+        out.flush();
+    }
 
-            if (body != null) {
-                out.write(body);
-            }
+    /**
+     * 写出请求但不刷新，流水线把多个请求合并后一次写出
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(toString().getBytes(StandardCharsets.UTF_8));
 
-            out.flush();
-            System.out.println("\nHTTP 请求已发送：\n" + this + (body == null ? "" : (
-                    headers.containsKey("Content-Type") && !headers.get("Content-Type").startsWith("text") ?
-                            "[二进制数据 - " + body.length + "字节]" : new String(body, StandardCharsets.UTF_8))));
-        } catch (IOException e) {
-            System.out.println("发送请求失败：" + e.getMessage());
-            throw new RuntimeException(e);
+        if (body != null) {
+            out.write(body);
         }
+
+        Log.info("HTTP 请求已发送：\n{}{}", this, Log.body(body, headers.get("Content-Type")));
     }
 }
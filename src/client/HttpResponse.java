@@ -1,110 +1,186 @@
 package client;
 
+import common.ChunkedInputStream;
+import common.FixedLengthInputStream;
+import common.HttpHead;
+import common.HttpInput;
+import common.Log;
+
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 class HttpResponse {
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private String version;
     int statusCode;
     private String statusText;
-    final Map<String, String> headers;
+    Map<String, String> headers;
     byte[] body;
     String savedFilePath;
+    //流式接收时交付的消息体字节数
+    long bodyLength;
+    //连接在本响应之后能否继续使用
+    boolean keepAlive;
+
+    /**
+     * 从连接读取一个完整的响应
+     *
+     * @param requestMethod HEAD 请求的响应没有消息体
+     */
+    HttpResponse(HttpInput inputStream, String requestMethod) throws IOException {
+        this(inputStream, requestMethod, null, null);
+    }
 
-    public HttpResponse(InputStream inputStream) {
-        this.headers = new HashMap<>();
-        try {
-            parseResponse(inputStream);
-        } catch (IOException e) {
-            System.out.println("解析响应失败：" + e.getMessage());
-            throw new RuntimeException(e);
-        }
+    /**
+     * 读取响应，200和206的消息体边读边交给 consumer，不在内存中保留
+     *
+     * @param consumer 为null时消息体读入 {@link #body}
+     * @param progress 流式接收时的进度回调，可以为null
+     */
+    HttpResponse(HttpInput inputStream, String requestMethod, BodyConsumer consumer, ProgressListener progress)
+            throws IOException {
+        parseResponse(inputStream, requestMethod, consumer, progress);
+        decodeContent();
     }
 
-    private void parseResponse(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
-
-        // 解析响应行
-        String responseLine = readLine(inputStream, lineBuffer);
-        if (responseLine != null) {
-            String[] parts = responseLine.split(" ", 3);
-            if (parts.length >= 3) {
-                this.version = parts[0];
-                this.statusCode = Integer.parseInt(parts[1]);
-                this.statusText = parts[2];
-            }
+    /**
+     * 解压 gzip/deflate 响应体，并把响应头改为解压后的表示
+     */
+    private void decodeContent() throws IOException {
+        String encoding = headers.get("Content-Encoding");
+        if (body == null || encoding == null) {
+            return;
         }
-
-        // 解析响应头
-        String line;
-        while ((line = readLine(inputStream, lineBuffer)) != null && !line.isEmpty()) {
-            int colonIndex = line.indexOf(":");
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
-            }
+        InputStream decoded = switch (encoding.trim().toLowerCase()) {
+            case "gzip", "x-gzip" -> new GZIPInputStream(new ByteArrayInputStream(body));
+            case "deflate" -> new InflaterInputStream(new ByteArrayInputStream(body));
+            default -> null;
+        };
+        if (decoded == null) {
+            return;
         }
+        try (decoded) {
+            this.body = decoded.readAllBytes();
+        }
+        headers.remove("Content-Encoding");
+        headers.put("Content-Length", String.valueOf(body.length));
+    }
 
-        if (statusCode == 304) {
+    private void parseResponse(HttpInput inputStream, String requestMethod, BodyConsumer consumer,
+                               ProgressListener progress) throws IOException {
+        // 解析响应行和响应头，跳过100 Continue等临时响应
+        HttpHead head;
+        do {
+            head = inputStream.readHead(MAX_HEAD_SIZE);
+            if (head == null) {
+                throw new EOFException("服务器已关闭连接");
+            }
+        } while (head.statusCode() >= 100 && head.statusCode() < 200);
+        this.version = head.token(0);
+        this.statusCode = head.statusCode();
+        this.statusText = head.token(2);
+        this.headers = head.toMap();
+        this.keepAlive = !HttpHead.HTTP_1_0.equals(version) && !"close".equalsIgnoreCase(head.header("Connection"));
+
+        if (statusCode == 304 || statusCode == 204 || "HEAD".equals(requestMethod)) {
             return;
         }
 
         // 解析响应正文
-        if (headers.containsKey("Content-Length")) {
-            int contentLength = Integer.parseInt(headers.get("Content-Length"));
-            if (contentLength > 0) {
-                byte[] bodyBytes = new byte[contentLength];
-                int bytesRead = 0;
-                while (bytesRead < contentLength) {
-                    int n = inputStream.read(bodyBytes, bytesRead, contentLength - bytesRead);
-                    if (n == -1) break;
-                    bytesRead += n;
+        String transferEncoding = head.header("Transfer-Encoding");
+        boolean chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+        if (consumer != null && (statusCode == 200 || statusCode == 206)) {
+            streamBody(inputStream, chunked ? -1 : head.contentLength(), chunked, consumer, progress);
+            return;
+        }
+        if (chunked) {
+            try (InputStream chunks = new ChunkedInputStream(inputStream, Integer.MAX_VALUE - 8)) {
+                this.body = chunks.readAllBytes();
+            }
+            return;
+        }
+        long contentLength = head.contentLength();
+        if (contentLength > Integer.MAX_VALUE) {
+            throw new IOException("响应体过大");
+        }
+        if (contentLength < 0) {
+            //没有长度的响应以关闭连接结束，连接不能再复用
+            this.body = inputStream.readAllBytes();
+            this.keepAlive = false;
+        } else if (contentLength > 0) {
+            byte[] bodyBytes = new byte[(int) contentLength];
+            int bytesRead = 0;
+            while (bytesRead < contentLength) {
+                int n = inputStream.read(bodyBytes, bytesRead, (int) contentLength - bytesRead);
+                if (n == -1) {
+                    throw new EOFException("响应体不完整");
                 }
-                this.body = bodyBytes;
-
-                handleBody();
+                bytesRead += n;
             }
+            this.body = bodyBytes;
         }
     }
 
-    private String readLine(InputStream inputStream, ByteArrayOutputStream lineBuffer) throws IOException {
-        lineBuffer.reset();
-        int b;
-        while ((b = inputStream.read()) != -1) {
-            if (b == '\n') {
-                break;
-            }
-            if (b != '\r') {
-                lineBuffer.write(b);
-            }
+    /**
+     * 把消息体按块交给 consumer，gzip/deflate 编码的消息体在交付前解压
+     */
+    private void streamBody(HttpInput inputStream, long contentLength, boolean chunked, BodyConsumer consumer,
+                            ProgressListener progress) throws IOException {
+        InputStream raw;
+        if (chunked) {
+            raw = new ChunkedInputStream(inputStream, Long.MAX_VALUE);
+        } else if (contentLength >= 0) {
+            raw = new FixedLengthInputStream(inputStream, contentLength);
+        } else {
+            //没有长度的响应以关闭连接结束，连接不能再复用
+            raw = inputStream;
+            this.keepAlive = false;
         }
-
-        if (lineBuffer.size() == 0 && b == -1) {
-            return null;
+        String encoding = headers.remove("Content-Encoding");
+        InputStream in = switch (encoding == null ? "" : encoding.trim().toLowerCase()) {
+            case "gzip", "x-gzip" -> new GZIPInputStream(raw, STREAM_BUFFER_SIZE);
+            case "deflate" -> new InflaterInputStream(raw);
+            default -> {
+                if (encoding != null) {
+                    headers.put("Content-Encoding", encoding);
+                }
+                yield raw;
+            }
+        };
+        long total = contentLength;
+        if (in != raw) {
+            //解压后的长度未知
+            headers.remove("Content-Length");
+            total = -1;
         }
 
-        return lineBuffer.toString(StandardCharsets.UTF_8);
-    }
-
-    private void handleBody() throws IOException {
-        String contentType = headers.get("Content-Type");
-        if (contentType == null) return;
-
-        if (contentType.startsWith("image/png")) {
-            savePngFile("images/saved/" + System.currentTimeMillis() + ".png");
+        consumer.begin(this);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long received = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                consumer.accept(buffer, 0, n);
+                received += n;
+                if (progress != null) {
+                    progress.onProgress(received, total);
+                }
+            }
+            if (in != raw && raw != inputStream) {
+                //解压流读到压缩数据的结尾就停止，读完分块结束标记或剩余长度，连接才能复用
+                raw.transferTo(OutputStream.nullOutputStream());
+            }
+        } finally {
+            //分块和定长流的 close 不关闭连接；没有长度的响应关闭连接本来就不能复用
+            if (in != raw) {
+                in.close();
+            }
         }
-    }
-
-    private void savePngFile(String filename) throws IOException {
-        Path filePath = Paths.get(filename);
-        Files.write(filePath, body);
-        this.savedFilePath = filePath.toAbsolutePath().toString();
+        this.bodyLength = received;
     }
 
     public String toString() {
@@ -124,9 +200,13 @@ class HttpResponse {
         String contentType = headers.get("Content-Type");
 
         if (contentType != null && !contentType.startsWith("image/") && body != null) {
-            response.append(new String(body, StandardCharsets.UTF_8));
+            response.append(Log.body(body, contentType));
         } else if (savedFilePath != null) {
             response.append("[文件已保存到: ").append(savedFilePath).append("]");
+        } else if (body != null) {
+            response.append("[").append(body.length).append("字节，未缓存]");
+        } else if (bodyLength > 0) {
+            response.append("[已流式接收").append(bodyLength).append("字节]");
         }
 
         return response.toString();
@@ -0,0 +1,42 @@
+package client;
+
+/**
+ * 压测模式的配置，均可通过 -D 系统属性覆盖
+ */
+final class LoadConfig {
+    static final String HOST = System.getProperty("load.host", HttpClient.host);
+    static final int PORT = Integer.getInteger("load.port", HttpClient.port);
+
+    /**
+     * 长连接数，每个连接由一个虚拟线程驱动
+     */
+    static final int CONNECTIONS = Integer.getInteger("load.connections", 16);
+
+    /**
+     * 请求组合，格式为 方法 路径:权重，逗号分隔
+     */
+    static final String MIX = System.getProperty("load.mix", "GET /image:80,POST /login:20");
+
+    /**
+     * 目标总速率（请求/秒）。大于0时为开环模式，按计划时刻发送并从计划时刻开始计时，
+     * 校正协同遗漏；为0时为闭环模式，每个连接收到响应后立即发送下一个请求
+     */
+    static final int RATE = Integer.getInteger("load.rate", 0);
+
+    static final int DURATION_SECONDS = Integer.getInteger("load.duration", 30);
+    static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 5);
+
+    /**
+     * POST /image 上传的随机数据大小
+     */
+    static final int UPLOAD_SIZE = Integer.getInteger("load.uploadSize", 64 * 1024);
+
+    /**
+     * 表单请求使用的账号，开始前自动注册
+     */
+    static final String USERNAME = System.getProperty("load.username", "load");
+    static final String PASSWORD = System.getProperty("load.password", "load");
+
+    private LoadConfig() {
+    }
+}
@@ -0,0 +1,351 @@
+package client;
+
+import common.ChunkedInputStream;
+import common.HttpHead;
+import common.HttpInput;
+import common.Histogram;
+import common.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 非交互的压测模式：多个长连接按配置的请求组合持续发送请求，结束后汇报吞吐量、错误和延迟分位数
+ * <p>
+ * 请求报文预先编码，响应只解析头部并丢弃消息体；预热阶段的请求不计入结果。
+ * 运行方式：java -Dload.connections=64 -Dload.rate=5000 client.HttpClient load
+ */
+class LoadGenerator {
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    //连续出错时重试前等待的时间，从最小值开始每次加倍，成功后恢复
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final List<Operation> operations;
+    private final int totalWeight;
+
+    //预热结束和压测结束的时刻（System.nanoTime）
+    private long measureStart;
+    private long deadline;
+
+    /**
+     * 请求组合中的一项，记录自己的延迟和错误
+     */
+    private static final class Operation {
+        final String name;
+        final int weight;
+        final byte[] request;
+        final Histogram latency = new Histogram();
+        final LongAdder errors = new LongAdder();
+        //非2xx/3xx的状态码计数
+        final Map<Integer, LongAdder> failedStatuses = new TreeMap<>();
+
+        Operation(String name, int weight, byte[] request) {
+            this.name = name;
+            this.weight = weight;
+            this.request = request;
+        }
+
+        synchronized void statusError(int status) {
+            failedStatuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+    }
+
+    LoadGenerator(List<Operation> operations) {
+        this.operations = operations;
+        this.totalWeight = operations.stream().mapToInt(op -> op.weight).sum();
+    }
+
+    static void run() {
+        List<Operation> operations = parseMix(LoadConfig.MIX);
+        LoadGenerator generator = new LoadGenerator(operations);
+        try {
+            generator.prepare();
+        } catch (IOException e) {
+            Log.error("压测准备失败：{}", e.getMessage());
+            return;
+        }
+        generator.execute();
+        generator.report();
+    }
+
+    /**
+     * 解析 "GET /image:80,POST /login:20" 形式的请求组合
+     */
+    private static List<Operation> parseMix(String mix) {
+        byte[] form = ("username=" + LoadConfig.USERNAME + "&password=" + LoadConfig.PASSWORD)
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] upload = new byte[LoadConfig.UPLOAD_SIZE];
+        ThreadLocalRandom.current().nextBytes(upload);
+
+        List<Operation> operations = new ArrayList<>();
+        for (String item : mix.split(",")) {
+            item = item.trim();
+            int colon = item.lastIndexOf(':');
+            int space = item.indexOf(' ');
+            if (colon < 0 || space < 0) {
+                throw new IllegalArgumentException("无效的请求组合：" + item);
+            }
+            String method = item.substring(0, space).toUpperCase();
+            String path = item.substring(space + 1, colon).trim();
+            int weight = Integer.parseInt(item.substring(colon + 1).trim());
+            byte[] body = null;
+            String contentType = null;
+            if ("POST".equals(method)) {
+                boolean image = path.startsWith("/image");
+                body = image ? upload : form;
+                contentType = image ? "image/png" : "application/x-www-form-urlencoded";
+            }
+            operations.add(new Operation(method + " " + path, weight, encode(method, path, contentType, body)));
+        }
+        return operations;
+    }
+
+    private static byte[] encode(String method, String path, String contentType, byte[] body) {
+        StringBuilder head = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(LoadConfig.HOST).append(':').append(LoadConfig.PORT).append("\r\n")
+                .append("User-Agent: HttpClient/1.0\r\n")
+                .append("Connection: keep-alive\r\n");
+        if (body != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        byte[] headBytes = head.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] request = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
+    }
+
+    /**
+     * 注册压测账号，登录请求才能成功
+     */
+    private void prepare() throws IOException {
+        byte[] form = ("username=" + LoadConfig.USERNAME + "&password=" + LoadConfig.PASSWORD)
+                .getBytes(StandardCharsets.UTF_8);
+        try (Connection connection = new Connection()) {
+            connection.exchange(encode("POST", "/register", "application/x-www-form-urlencoded", form));
+        }
+    }
+
+    private void execute() {
+        int connections = LoadConfig.CONNECTIONS;
+        //开环模式下每个连接分担相同的速率
+        long intervalNanos = LoadConfig.RATE > 0 ? TimeUnit.SECONDS.toNanos(connections) / LoadConfig.RATE : 0;
+        Log.info("开始压测 {}:{}，连接数 {}，{}，预热 {} 秒，持续 {} 秒", LoadConfig.HOST, LoadConfig.PORT, connections,
+                LoadConfig.RATE > 0 ? "开环 " + LoadConfig.RATE + " 请求/秒" : "闭环", LoadConfig.WARMUP_SECONDS,
+                LoadConfig.DURATION_SECONDS);
+
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(LoadConfig.WARMUP_SECONDS);
+        deadline = measureStart + TimeUnit.SECONDS.toNanos(LoadConfig.DURATION_SECONDS);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                //错开各连接的第一个计划时刻，避免同时发出
+                long firstSend = start + (intervalNanos == 0 ? 0 : intervalNanos * i / connections);
+                executor.execute(() -> drive(firstSend, intervalNanos));
+            }
+        }
+    }
+
+    /**
+     * 一个连接的发送循环，出错后退避一段时间再重新建立连接，
+     * 避免服务器拒绝连接时闭环模式下每个连接空转占满一个CPU
+     */
+    private void drive(long firstSend, long intervalNanos) {
+        Connection connection = null;
+        long intended = firstSend;
+        long backoff = MIN_BACKOFF_NANOS;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                break;
+            }
+            if (intervalNanos > 0 && intended > now) {
+                LockSupport.parkNanos(intended - now);
+                if (System.nanoTime() >= deadline) {
+                    break;
+                }
+            }
+            //开环时延迟从计划时刻算起，发送落后于计划的等待时间也计入延迟；是否计入结果按实际发送时刻判断
+            long sentAt = System.nanoTime();
+            long startedAt = intervalNanos > 0 ? intended : sentAt;
+            boolean measured = sentAt >= measureStart;
+            Operation operation = pick();
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                }
+                int status = connection.exchange(operation.request);
+                long latency = System.nanoTime() - startedAt;
+                if (measured) {
+                    operation.latency.record(latency);
+                    if (status >= 400) {
+                        operation.statusError(status);
+                    }
+                }
+                if (connection.closed) {
+                    connection.close();
+                    connection = null;
+                }
+                backoff = MIN_BACKOFF_NANOS;
+            } catch (IOException e) {
+                if (measured) {
+                    operation.errors.increment();
+                }
+                closeQuietly(connection);
+                connection = null;
+                //开环模式下退避期间错过的计划时刻仍按原计划计算延迟
+                LockSupport.parkNanos(Math.min(backoff, deadline - System.nanoTime()));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+            }
+            intended += intervalNanos;
+        }
+        closeQuietly(connection);
+    }
+
+    private Operation pick() {
+        if (operations.size() == 1) {
+            return operations.getFirst();
+        }
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Operation operation : operations) {
+            r -= operation.weight;
+            if (r < 0) {
+                return operation;
+            }
+        }
+        return operations.getLast();
+    }
+
+    private void report() {
+        double seconds = LoadConfig.DURATION_SECONDS;
+        Histogram total = new Histogram();
+        StringBuilder text = new StringBuilder("压测结果（不含预热）：\n");
+        long totalErrors = 0;
+        for (Operation operation : operations) {
+            total.add(operation.latency);
+            long errors = operation.errors.sum();
+            long failed = 0;
+            for (LongAdder count : operation.failedStatuses.values()) {
+                failed += count.sum();
+            }
+            totalErrors += errors + failed;
+            appendRow(text, operation.name, operation.latency, seconds);
+            if (errors > 0 || failed > 0) {
+                text.append("    连接错误 ").append(errors);
+                operation.failedStatuses.forEach((status, count) ->
+                        text.append("，状态码 ").append(status).append(" × ").append(count.sum()));
+                text.append('\n');
+            }
+        }
+        appendRow(text, "合计", total, seconds);
+        text.append("    错误 ").append(totalErrors);
+        Log.info("{}", text);
+    }
+
+    private static void appendRow(StringBuilder text, String name, Histogram latency, double seconds) {
+        text.append(String.format("  %-16s 请求 %-9d 吞吐 %10.1f/s  延迟(ms) p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                name, latency.count(), latency.count() / seconds,
+                millis(latency.percentile(0.5)), millis(latency.percentile(0.9)), millis(latency.percentile(0.99)),
+                millis(latency.percentile(0.999)), millis(latency.percentile(1.0))));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 一个到服务器的长连接，同一时刻只有一个请求在途
+     */
+    private static final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final HttpInput in;
+        private final OutputStream out;
+        private final byte[] sink = new byte[64 * 1024];
+        //服务器要求关闭连接
+        boolean closed;
+
+        Connection() throws IOException {
+            socket = new Socket(LoadConfig.HOST, LoadConfig.PORT);
+            socket.setTcpNoDelay(true);
+            in = new HttpInput(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * 发送请求并读完响应，返回最终状态码（跳过100 Continue）
+         */
+        int exchange(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+            HttpHead head;
+            do {
+                head = in.readHead(MAX_HEAD_SIZE);
+                if (head == null) {
+                    throw new IOException("连接被服务器关闭");
+                }
+            } while (head.statusCode() == 100);
+
+            int status = head.statusCode();
+            String transferEncoding = head.header("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                drain(new ChunkedInputStream(in, Long.MAX_VALUE), Long.MAX_VALUE);
+            } else if (head.contentLength() > 0) {
+                drain(in, head.contentLength());
+            } else if (head.contentLength() < 0 && status != 204 && status != 304) {
+                //没有长度的响应以关闭连接结束
+                drain(in, Long.MAX_VALUE);
+                closed = true;
+            }
+            if ("close".equalsIgnoreCase(head.header("Connection"))) {
+                closed = true;
+            }
+            return status;
+        }
+
+        private void drain(InputStream body, long length) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = body.read(sink, 0, (int) Math.min(sink.length, remaining));
+                if (n < 0) {
+                    if (length == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new IOException("响应体不完整");
+                }
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
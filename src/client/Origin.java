@@ -0,0 +1,24 @@
+package client;
+
+import java.net.URI;
+
+/**
+ * 连接池的键：协议固定为http，由主机名和端口确定
+ */
+record Origin(String host, int port) {
+    static Origin of(URI uri) {
+        String scheme = uri.getScheme();
+        if (scheme == null || !scheme.equalsIgnoreCase("http")) {
+            throw new IllegalArgumentException("只支持http地址：" + uri);
+        }
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("地址缺少主机名：" + uri);
+        }
+        return new Origin(uri.getHost().toLowerCase(), uri.getPort() == -1 ? 80 : uri.getPort());
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,178 @@
+package client;
+
+import common.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个长连接上的HTTP/1.1请求流水线
+ * <p>
+ * 请求连续写出而不等待前一个响应，响应按FIFO顺序与请求对应。由一个虚拟线程驱动：
+ * 每读完一个响应，把排队的请求补足到最大深度，合并为一次写入；全部完成后把连接还给连接池并结束。
+ * 响应在驱动线程上完成，回调中的阻塞操作应使用 *Async 方法
+ */
+class Pipeline {
+    private final ConnectionPool pool;
+    private final Origin origin;
+    private final int maxDepth;
+
+    //临界区很短，使用ReentrantLock以免固定虚拟线程
+    private final ReentrantLock lock = new ReentrantLock();
+    //尚未写出的请求
+    private final ArrayDeque<Exchange> queued = new ArrayDeque<>();
+    //已写出、等待响应的请求
+    private final ArrayDeque<Exchange> inFlight = new ArrayDeque<>();
+    private boolean started;
+    private boolean closed;
+    private volatile ConnectionPool.Connection connection;
+
+    private record Exchange(HttpRequest request, CompletableFuture<HttpResponse> future) {
+    }
+
+    Pipeline(ConnectionPool pool, Origin origin, int maxDepth) {
+        this.pool = pool;
+        this.origin = origin;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * 加入流水线，流水线已结束时返回false，调用方应换一条流水线
+     */
+    boolean submit(HttpRequest request, CompletableFuture<HttpResponse> future) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            queued.addLast(new Exchange(request, future));
+            if (!started) {
+                started = true;
+                Thread.ofVirtual().name("pipeline-" + origin).start(this::run);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        ConnectionPool.Connection connection;
+        try {
+            connection = pool.acquire(origin, false);
+        } catch (IOException e) {
+            fail(e, false);
+            return;
+        }
+        this.connection = connection;
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                Exchange head;
+                lock.lock();
+                try {
+                    if (queued.isEmpty() && inFlight.isEmpty()) {
+                        closed = true;
+                        break;
+                    }
+                    batch.reset();
+                    while (inFlight.size() < maxDepth && !queued.isEmpty()) {
+                        Exchange exchange = queued.pollFirst();
+                        exchange.request().writeTo(batch);
+                        inFlight.addLast(exchange);
+                    }
+                    head = inFlight.peekFirst();
+                } finally {
+                    lock.unlock();
+                }
+
+                if (batch.size() > 0) {
+                    //多个小请求合并为一次写入
+                    batch.writeTo(connection.out);
+                    connection.out.flush();
+                }
+
+                HttpResponse response = new HttpResponse(connection.in, head.request().getMethod());
+                lock.lock();
+                try {
+                    inFlight.pollFirst();
+                } finally {
+                    lock.unlock();
+                }
+                head.future().complete(response);
+
+                if (!response.keepAlive) {
+                    //之后已写出的请求不会再有响应
+                    pool.release(connection, false);
+                    fail(new IOException("服务器关闭了连接"), true);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            pool.release(connection, false);
+            fail(e, true);
+            return;
+        } catch (RuntimeException e) {
+            pool.release(connection, false);
+            fail(new IOException(e), true);
+            return;
+        }
+        pool.release(connection, true);
+    }
+
+    /**
+     * 结束流水线：已写出的请求以 cause 失败，未写出的请求以 {@link RequestNotSentException} 失败
+     */
+    private void fail(IOException cause, boolean connected) {
+        List<Exchange> sent;
+        List<Exchange> unsent;
+        lock.lock();
+        try {
+            closed = true;
+            sent = new ArrayList<>(inFlight);
+            unsent = new ArrayList<>(queued);
+            inFlight.clear();
+            queued.clear();
+        } finally {
+            lock.unlock();
+        }
+        if (!sent.isEmpty() || !unsent.isEmpty()) {
+            Log.debug("到 {} 的流水线中断：{}", origin, cause.getMessage());
+        }
+        for (Exchange exchange : sent) {
+            exchange.future().completeExceptionally(cause);
+        }
+        //连接都没有建立时不能当作未发送重试，否则会无限重试
+        IOException notSent = connected ? new RequestNotSentException(cause) : cause;
+        for (Exchange exchange : unsent) {
+            exchange.future().completeExceptionally(notSent);
+        }
+    }
+
+    /**
+     * 关闭连接，未完成的请求都以失败结束
+     */
+    void close() {
+        ConnectionPool.Connection connection = this.connection;
+        if (connection != null) {
+            connection.close();
+        } else {
+            fail(new IOException("客户端已关闭"), false);
+        }
+    }
+}
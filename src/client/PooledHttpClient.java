@@ -0,0 +1,420 @@
+package client;
+
+import common.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 可复用的线程安全HTTP客户端，按源维护长连接池
+ * <p>
+ * 重定向按绝对地址解析，跳转到其他主机或端口时使用对应源的连接；
+ * 复用的连接在发送或读取响应时失败，幂等请求会在新连接上重试一次。
+ * 异步接口在每个源的一个连接上以流水线方式发送请求，见 {@link Pipeline}。
+ * 参数均可通过 -D 系统属性覆盖
+ */
+public class PooledHttpClient implements AutoCloseable {
+    /**
+     * 每个源的最大连接数，超过时等待其他请求归还连接
+     */
+    static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger("client.maxConnectionsPerHost", 8);
+
+    /**
+     * 空闲连接的保留时间（毫秒）
+     */
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("client.idleTimeout", 30_000);
+
+    static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("client.connectTimeout", 5_000);
+    static final int READ_TIMEOUT_MILLIS = Integer.getInteger("client.readTimeout", 30_000);
+    static final int MAX_REDIRECTS = Integer.getInteger("client.maxRedirects", 5);
+
+    /**
+     * 异步请求在一个连接上最多同时等待的响应数
+     */
+    static final int PIPELINE_DEPTH = Integer.getInteger("client.pipelineDepth", 16);
+
+    /**
+     * 下载中断后用Range请求续传的最多次数
+     */
+    static final int MAX_RESUME_ATTEMPTS = Integer.getInteger("client.maxResumeAttempts", 3);
+
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+
+    private final ConnectionPool pool;
+    private final Map<Origin, Pipeline> pipelines = new ConcurrentHashMap<>();
+
+    public PooledHttpClient() {
+        this(MAX_CONNECTIONS_PER_HOST, IDLE_TIMEOUT_MILLIS);
+    }
+
+    public PooledHttpClient(int maxConnectionsPerHost, long idleTimeoutMillis) {
+        this.pool = new ConnectionPool(maxConnectionsPerHost, idleTimeoutMillis,
+                CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+    }
+
+    HttpResponse get(String url) throws IOException {
+        return execute("GET", URI.create(url), null);
+    }
+
+    HttpResponse post(String url, byte[] body, String contentType) throws IOException {
+        return execute("POST", URI.create(url), body, contentType);
+    }
+
+    HttpResponse execute(String method, URI uri, byte[] body) throws IOException {
+        return execute(method, uri, body, null);
+    }
+
+    /**
+     * 发送请求并跟随重定向，返回最终的响应
+     */
+    HttpResponse execute(String method, URI uri, byte[] body, String contentType) throws IOException {
+        return execute(method, uri, body, request -> {
+            if (body != null && contentType != null) {
+                request.setContentType(contentType);
+            }
+        }, null, null);
+    }
+
+    /**
+     * GET 请求，200和206的消息体边接收边交给 consumer，不读入内存
+     */
+    HttpResponse stream(URI uri, BodyConsumer consumer, ProgressListener progress) throws IOException {
+        return execute("GET", uri, null, request -> {
+        }, consumer, progress);
+    }
+
+    /**
+     * 把资源下载到文件，消息体直接写入同目录下的 .part 文件，完成后原子重命名为目标文件
+     * <p>
+     * 传输中断时用 Range 从已写入的长度续传，If-Range 带上首次响应的强ETag或Last-Modified，
+     * 资源已变化时服务器返回完整内容，从头重新写入。.part 文件和验证器在多次调用之间保留，
+     * 上次未完成的下载也会续传
+     *
+     * @return 最终的响应；非2xx响应的消息体在 {@link HttpResponse#body} 中，目标文件不变
+     */
+    HttpResponse download(URI uri, Path target, ProgressListener progress) throws IOException {
+        Download download = new Download(target, progress);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpResponse response = download.attempt(uri);
+                return download.finish(response);
+            } catch (IOException e) {
+                if (attempt >= MAX_RESUME_ATTEMPTS) {
+                    throw e;
+                }
+                Log.info("下载中断（{}），已接收{}字节，开始续传", e.getMessage(), download.written());
+            }
+        }
+    }
+
+    /**
+     * 一次下载的状态，各次尝试共用
+     */
+    private final class Download {
+        private final Path target;
+        private final Path part;
+        private final Path validatorFile;
+        private final ProgressListener progress;
+
+        Download(Path target, ProgressListener progress) {
+            this.target = target;
+            this.part = target.resolveSibling(target.getFileName() + ".part");
+            this.validatorFile = target.resolveSibling(target.getFileName() + ".part.validator");
+            this.progress = progress;
+        }
+
+        long written() throws IOException {
+            return Files.exists(part) ? Files.size(part) : 0;
+        }
+
+        HttpResponse attempt(URI uri) throws IOException {
+            String validator = Files.exists(validatorFile)
+                    ? Files.readString(validatorFile, StandardCharsets.UTF_8).trim() : null;
+            long offset = validator == null || validator.isEmpty() ? 0 : written();
+            try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                file.truncate(offset);
+                file.position(offset);
+                long[] start = {offset};
+                long[] size = {-1};
+                BodyConsumer writer = new BodyConsumer() {
+                    @Override
+                    public void begin(HttpResponse response) throws IOException {
+                        if (response.statusCode == 206) {
+                            long first = contentRangeStart(response.headers.get("Content-Range"));
+                            if (first != offset) {
+                                throw new IOException("续传位置不符：" + response.headers.get("Content-Range"));
+                            }
+                            size[0] = contentRangeSize(response.headers.get("Content-Range"));
+                        } else {
+                            //不支持Range或资源已变化，从头写入
+                            file.truncate(0);
+                            file.position(0);
+                            start[0] = 0;
+                            size[0] = response.headers.get("Content-Length") == null
+                                    ? -1 : Long.parseLong(response.headers.get("Content-Length").trim());
+                        }
+                        String newValidator = validatorOf(response);
+                        if (newValidator == null) {
+                            Files.deleteIfExists(validatorFile);
+                        } else {
+                            Files.writeString(validatorFile, newValidator, StandardCharsets.UTF_8);
+                        }
+                    }
+
+                    @Override
+                    public void accept(byte[] buffer, int from, int length) throws IOException {
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, from, length);
+                        while (chunk.hasRemaining()) {
+                            file.write(chunk);
+                        }
+                    }
+                };
+                ProgressListener total = progress == null ? null
+                        : (received, length) -> progress.onProgress(start[0] + received, size[0]);
+                return execute("GET", uri, null, request -> {
+                    //续传按字节偏移，不能让服务器压缩
+                    request.setHeader("Accept-Encoding", "identity");
+                    if (offset > 0) {
+                        request.setHeader("Range", "bytes=" + offset + "-");
+                        request.setHeader("If-Range", validator);
+                    }
+                }, writer, total);
+            }
+        }
+
+        /**
+         * 完整接收后把 .part 重命名为目标文件；416 表示 .part 已经是完整内容。
+         * 服务器错误时保留 .part 以便之后续传
+         */
+        HttpResponse finish(HttpResponse response) throws IOException {
+            if (response.statusCode >= 500) {
+                return response;
+            }
+            boolean complete = response.statusCode == 200 || response.statusCode == 206
+                    || (response.statusCode == 416 && Files.exists(validatorFile)
+                    && contentRangeSize(response.headers.get("Content-Range")) == written());
+            if (!complete) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(validatorFile);
+                return response;
+            }
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(validatorFile);
+            response.savedFilePath = target.toAbsolutePath().toString();
+            return response;
+        }
+    }
+
+    /**
+     * 续传使用的验证器：强ETag优先，其次Last-Modified，弱ETag不能用于If-Range
+     */
+    private static String validatorOf(HttpResponse response) {
+        String eTag = response.headers.get("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return response.headers.get("Last-Modified");
+    }
+
+    /**
+     * Content-Range: bytes first-last/size 中的 first，格式错误时返回-1
+     */
+    private static long contentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        try {
+            return dash < 0 ? -1 : Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Content-Range 中的完整长度，未知（*）或格式错误时返回-1
+     */
+    private static long contentRangeSize(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 发送请求并跟随重定向，customizer 在每次发送前设置额外的请求头
+     */
+    private HttpResponse execute(String method, URI uri, byte[] body, Consumer<HttpRequest> customizer,
+                                 BodyConsumer consumer, ProgressListener progress) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            Origin origin = Origin.of(uri);
+            HttpRequest request = new HttpRequest(method, target(uri), body, origin.host(), origin.port());
+            customizer.accept(request);
+            HttpResponse response = exchange(origin, request, consumer, progress);
+
+            String location = response.headers.get("Location");
+            if (!isRedirect(response.statusCode) || location == null) {
+                return response;
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                Log.info("重定向次数过多，已停止重定向。");
+                return response;
+            }
+            uri = uri.resolve(location);
+            String redirectMethod = redirectMethod(response.statusCode, method);
+            if (!redirectMethod.equals(method)) {
+                method = redirectMethod;
+                body = null;
+            }
+            Log.info("重定向至 {}", uri);
+        }
+    }
+
+    CompletableFuture<HttpResponse> getAsync(String url) {
+        return executeAsync("GET", URI.create(url), null, null);
+    }
+
+    /**
+     * 异步发送请求并跟随重定向；同一源的请求在一个长连接上以流水线方式发送
+     */
+    CompletableFuture<HttpResponse> executeAsync(String method, URI uri, byte[] body, String contentType) {
+        return executeAsync(method, uri, body, contentType, 0);
+    }
+
+    private CompletableFuture<HttpResponse> executeAsync(String method, URI uri, byte[] body, String contentType,
+                                                         int redirects) {
+        Origin origin = Origin.of(uri);
+        HttpRequest request = new HttpRequest(method, target(uri), body, origin.host(), origin.port());
+        if (body != null && contentType != null) {
+            request.setContentType(contentType);
+        }
+        return submit(origin, request, false).thenCompose(response -> {
+            String location = response.headers.get("Location");
+            if (!isRedirect(response.statusCode) || location == null || redirects >= MAX_REDIRECTS) {
+                return CompletableFuture.completedFuture(response);
+            }
+            String redirectMethod = redirectMethod(response.statusCode, method);
+            boolean keepBody = redirectMethod.equals(method);
+            return executeAsync(redirectMethod, uri.resolve(location), keepBody ? body : null,
+                    keepBody ? contentType : null, redirects + 1);
+        });
+    }
+
+    private CompletableFuture<HttpResponse> submit(Origin origin, HttpRequest request, boolean retried) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        while (true) {
+            Pipeline pipeline = pipelines.compute(origin, (o, current) ->
+                    current == null || current.isClosed() ? new Pipeline(pool, o, PIPELINE_DEPTH) : current);
+            if (pipeline.submit(request, future)) {
+                break;
+            }
+        }
+        return future.exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            //未写出的请求总可以重发；已写出的请求只有幂等的才重发一次
+            if (cause instanceof RequestNotSentException
+                    || (!retried && cause instanceof IOException && IDEMPOTENT_METHODS.contains(request.getMethod()))) {
+                return submit(origin, request, true);
+            }
+            return CompletableFuture.failedFuture(cause);
+        });
+    }
+
+    /**
+     * 在源的连接上完成一次请求和响应，不跟随重定向
+     */
+    HttpResponse exchange(Origin origin, HttpRequest request) throws IOException {
+        return exchange(origin, request, null, null);
+    }
+
+    private HttpResponse exchange(Origin origin, HttpRequest request, BodyConsumer consumer, ProgressListener progress)
+            throws IOException {
+        boolean retried = false;
+        //已经交给 consumer 的数据无法收回，开始流式接收后不再重发
+        boolean[] streaming = {false};
+        BodyConsumer tracked = consumer == null ? null : new BodyConsumer() {
+            @Override
+            public void begin(HttpResponse response) throws IOException {
+                streaming[0] = true;
+                consumer.begin(response);
+            }
+
+            @Override
+            public void accept(byte[] buffer, int offset, int length) throws IOException {
+                consumer.accept(buffer, offset, length);
+            }
+        };
+        while (true) {
+            ConnectionPool.Connection connection = pool.acquire(origin, retried);
+            boolean reused = connection.reused;
+            try {
+                request.send(connection.out);
+                HttpResponse response = new HttpResponse(connection.in, request.getMethod(), tracked, progress);
+                pool.release(connection, response.keepAlive);
+                return response;
+            } catch (IOException e) {
+                pool.release(connection, false);
+                //对端可能恰好关闭了空闲连接，幂等请求可以安全地在新连接上重发
+                if (!reused || retried || streaming[0] || !IDEMPOTENT_METHODS.contains(request.getMethod())) {
+                    throw e;
+                }
+                Log.debug("复用连接失败，在新连接上重试：{}", e.getMessage());
+                retried = true;
+            } catch (RuntimeException e) {
+                pool.release(connection, false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 303总是改为GET；301和302按浏览器的习惯把POST改为GET
+     */
+    private static String redirectMethod(int statusCode, String method) {
+        if ("HEAD".equals(method)) {
+            return method;
+        }
+        if (statusCode == 303 || (statusCode <= 302 && "POST".equals(method))) {
+            return "GET";
+        }
+        return method;
+    }
+
+    static boolean isRedirect(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308;
+    }
+
+    private static String target(URI uri) {
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        return uri.getRawQuery() == null ? path : path + "?" + uri.getRawQuery();
+    }
+
+    @Override
+    public void close() {
+        for (Pipeline pipeline : pipelines.values()) {
+            pipeline.close();
+        }
+        pool.close();
+    }
+}
@@ -0,0 +1,12 @@
+package client;
+
+/**
+ * 流式接收消息体的进度回调
+ */
+@FunctionalInterface
+interface ProgressListener {
+    /**
+     * @param total 消息体总字节数，分块传输或以关闭连接结束时为-1
+     */
+    void onProgress(long received, long total);
+}
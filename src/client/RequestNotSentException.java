@@ -0,0 +1,12 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * 请求排在流水线中尚未写出，连接就已失效，任何方法的请求都可以安全地重新发送
+ */
+class RequestNotSentException extends IOException {
+    RequestNotSentException(IOException cause) {
+        super("请求未发送：" + cause.getMessage(), cause);
+    }
+}
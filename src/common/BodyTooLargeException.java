@@ -0,0 +1,12 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * 消息体超过允许的最大长度
+ */
+public class BodyTooLargeException extends IOException {
+    public BodyTooLargeException(long maxSize) {
+        super("消息体超过最大长度 " + maxSize + " 字节");
+    }
+}
@@ -0,0 +1,107 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * 增量查找分块消息体（含结束块和尾部头）的结束位置
+ * <p>
+ * 供非阻塞引擎判断分块请求体是否已收齐：每次只扫描新到的数据，解析状态保存在对象中，
+ * 数据可以分多段交给 {@link #scan}，已扫描的数据可以被调用方移走，不会重复扫描
+ */
+public final class ChunkedBodyScanner {
+    private enum State { SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE }
+
+    private State state = State.SIZE;
+    private long size;
+    private int digits;
+    private long remaining;
+    //尾部头当前行的字节数，以及上一个字节是否为CR
+    private int lineLength;
+    private boolean carriageReturn;
+    //已扫描的字节数
+    private long scanned;
+
+    /**
+     * 扫描 buf[from, to)，找到结束位置时返回其后一个字节的下标，否则返回-1，之后从新数据处继续
+     */
+    public int scan(byte[] buf, int from, int to) throws IOException {
+        int pos = from;
+        while (pos < to) {
+            switch (state) {
+                case SIZE, EXTENSION -> {
+                    byte b = buf[pos++];
+                    if (b == '\n') {
+                        endSizeLine();
+                    } else if (state == State.SIZE) {
+                        int digit = Character.digit(b, 16);
+                        if (digit < 0) {
+                            //块扩展（;之后的内容）和行尾的CR直接忽略
+                            state = State.EXTENSION;
+                        } else {
+                            size = (size << 4) | digit;
+                            if (++digits > 15) {
+                                throw new IOException("无效的块大小");
+                            }
+                        }
+                    }
+                }
+                case DATA -> {
+                    int n = (int) Math.min(remaining, to - pos);
+                    pos += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = State.DATA_END;
+                    }
+                }
+                case DATA_END -> {
+                    //块数据之后是CRLF
+                    if (buf[pos++] == '\n') {
+                        state = State.SIZE;
+                    }
+                }
+                case TRAILER -> {
+                    byte b = buf[pos++];
+                    if (b == '\n') {
+                        if (lineLength == 0 || (lineLength == 1 && carriageReturn)) {
+                            state = State.DONE;
+                            scanned += pos - from;
+                            return pos;
+                        }
+                        lineLength = 0;
+                    } else {
+                        lineLength++;
+                        carriageReturn = b == '\r';
+                    }
+                }
+                case DONE -> {
+                    return pos;
+                }
+            }
+        }
+        scanned += pos - from;
+        return -1;
+    }
+
+    /**
+     * 已扫描的原始字节数，用于限制请求体大小
+     */
+    public long scanned() {
+        return scanned;
+    }
+
+    private void endSizeLine() throws IOException {
+        if (digits == 0) {
+            throw new IOException("无效的块大小");
+        }
+        if (size == 0) {
+            //尾部头直到空行
+            state = State.TRAILER;
+            lineLength = 0;
+        } else {
+            state = State.DATA;
+            remaining = size;
+        }
+        size = 0;
+        digits = 0;
+    }
+}
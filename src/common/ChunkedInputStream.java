@@ -0,0 +1,144 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 解码 Transfer-Encoding: chunked 的消息体，读到结束块和尾部头之后返回-1
+ * <p>
+ * 底层流应为带缓冲的 {@link HttpInput}，块大小行按字节读取不会产生系统调用
+ */
+public class ChunkedInputStream extends InputStream {
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final InputStream in;
+    private final long maxSize;
+    private long chunkRemaining;
+    private long total;
+    private boolean started;
+    private boolean eof;
+    private IOException failure;
+
+    /**
+     * @param maxSize 解码后允许的最大字节数，超过时抛出 {@link BodyTooLargeException}
+     */
+    public ChunkedInputStream(InputStream in, long maxSize) {
+        this.in = in;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("分块数据不完整");
+        }
+        chunkRemaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (n == -1) {
+            throw new EOFException("分块数据不完整");
+        }
+        chunkRemaining -= n;
+        return n;
+    }
+
+    /**
+     * 当前块读完时读取下一个块头，没有更多数据时返回false
+     * <p>
+     * 出错后流处于块中间的未知位置，之后的读取都重复抛出同一个异常
+     * （FileChannel.transferFrom 等调用方在已传输部分数据时会吞掉异常并再次读取）
+     */
+    private boolean ensureChunk() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (eof) {
+            return false;
+        }
+        if (chunkRemaining > 0) {
+            return true;
+        }
+        try {
+            return nextChunk();
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (started) {
+            //上一块数据后的CRLF
+            readLine();
+        }
+        started = true;
+
+        long size = parseChunkSize(readLine());
+        if (size == 0) {
+            //跳过尾部头直到空行
+            String trailer;
+            do {
+                trailer = readLine();
+            } while (!trailer.isEmpty());
+            eof = true;
+            return false;
+        }
+        total += size;
+        if (total > maxSize) {
+            throw new BodyTooLargeException(maxSize);
+        }
+        chunkRemaining = size;
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("分块数据不完整");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+            if (line.length() > MAX_LINE_LENGTH) {
+                throw new IOException("分块大小行过长");
+            }
+        }
+        return line.toString();
+    }
+
+    private static long parseChunkSize(String line) throws IOException {
+        int end = 0;
+        while (end < line.length() && Character.digit(line.charAt(end), 16) >= 0) {
+            end++;
+        }
+        //块扩展（;之后的内容）直接忽略
+        if (end == 0 || end > 15) {
+            throw new IOException("无效的块大小：" + line);
+        }
+        return Long.parseLong(line.substring(0, end), 16);
+    }
+
+    /**
+     * 不关闭底层连接
+     */
+    @Override
+    public void close() {
+    }
+}
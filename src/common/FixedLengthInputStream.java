@@ -0,0 +1,63 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 按Content-Length读取消息体，读满后返回-1，不会越界读到下一个报文
+ */
+public class FixedLengthInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    public FixedLengthInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("消息体不完整，还差 " + remaining + " 字节");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException("消息体不完整，还差 " + remaining + " 字节");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * 剩余未读的字节数
+     */
+    public long remaining() {
+        return remaining;
+    }
+
+    /**
+     * 不关闭底层连接
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,121 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数线性直方图（HDR风格），记录非负整数值，如以纳秒计的耗时
+ * <p>
+ * 每个2的幂区间再等分为 {@value #SUB_BUCKETS} 个子桶，相对误差不超过1/8；
+ * 记录只做一次数组下标计算和原子自增，不分配对象，可常驻生产环境
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //超过 2^MAX_EXPONENT 的值记入最后一个桶，纳秒计约18分钟
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * 估计分位数，返回所在桶的上界，没有记录时返回0
+     *
+     * @param quantile 0到1之间，如0.99
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * 一次遍历计算小于每个界限的记录数，limits 须递增
+     */
+    public long[] cumulativeCounts(long[] limits) {
+        long[] result = new long[limits.length];
+        long seen = 0;
+        int next = 0;
+        for (int i = 0; i < BUCKET_COUNT && next < limits.length; i++) {
+            while (next < limits.length && upperBound(i) >= limits[next]) {
+                result[next++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (next < limits.length) {
+            result[next++] = seen;
+        }
+        return result;
+    }
+
+    /**
+     * 把另一个直方图的记录累加到本直方图，用于汇总多个线程各自的结果
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long n = other.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count());
+        sum.add(other.sum());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * 桶中可能出现的最大值（含）
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,61 @@
+package common;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * HTTP日期的格式化与解析（RFC 9110 5.6.7）
+ */
+public final class HttpDate {
+    //IMF-fixdate，例如 Sun, 06 Nov 1994 08:49:37 GMT
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    //已废弃的RFC 850格式，例如 Sunday, 06-Nov-94 08:49:37 GMT
+    private static final DateTimeFormatter RFC_850 =
+            DateTimeFormatter.ofPattern("EEEE, dd-MMM-yy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    //asctime格式，例如 Sun Nov  6 08:49:37 1994
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+    private HttpDate() {
+    }
+
+    /**
+     * 按IMF-fixdate格式化，精度为秒
+     */
+    public static String format(long epochMillis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * 解析三种HTTP日期格式，无法解析时返回-1
+     */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return ZonedDateTime.parse(value, IMF_FIXDATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+        }
+        try {
+            return ZonedDateTime.parse(value, RFC_850).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+        }
+        try {
+            return LocalDateTime.parse(value, ASCTIME).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,313 @@
+package common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 已解析的起始行和头部块，请求与响应共用
+ * <p>
+ * 整个头部块只复制一次到内部数组，解析时只记录各部分的字节区间，
+ * 方法名、协议版本等常见取值直接返回常量，其余字符串在首次访问时才创建
+ */
+public final class HttpHead {
+    public static final String GET = "GET";
+    public static final String POST = "POST";
+    public static final String PUT = "PUT";
+    public static final String DELETE = "DELETE";
+    public static final String HEAD = "HEAD";
+    public static final String OPTIONS = "OPTIONS";
+    public static final String PATCH = "PATCH";
+    public static final String HTTP_1_1 = "HTTP/1.1";
+    public static final String HTTP_1_0 = "HTTP/1.0";
+
+    private static final String[] KNOWN_TOKENS = {GET, POST, PUT, DELETE, HEAD, OPTIONS, PATCH, HTTP_1_1, HTTP_1_0};
+    private static final byte[][] KNOWN_TOKEN_BYTES = new byte[KNOWN_TOKENS.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_TOKENS.length; i++) {
+            KNOWN_TOKEN_BYTES[i] = KNOWN_TOKENS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final byte[] data;
+    //起始行三个部分的区间：[start0, end0, start1, end1, start2, end2]
+    private final int[] startLine = new int[6];
+    //每个头部占4个int：名称起止、值起止（已去掉首尾空白）
+    private int[] fields = new int[16 * 4];
+    private int fieldCount;
+
+    private String[] tokens;
+
+    private HttpHead(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * 查找头部块结束的空行（兼容只有LF的换行），返回空行之后的位置，未找到返回-1
+     */
+    public static int findHeadEnd(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < to && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < to && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 解析 buf[from, to) 中的头部块，to 应为 {@link #findHeadEnd} 的返回值
+     */
+    public static HttpHead parse(byte[] buf, int from, int to) {
+        byte[] data = new byte[to - from];
+        System.arraycopy(buf, from, data, 0, data.length);
+        HttpHead head = new HttpHead(data);
+        head.parseLines();
+        return head;
+    }
+
+    private void parseLines() {
+        int lineStart = 0;
+        boolean first = true;
+        while (lineStart < data.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < data.length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == lineStart) {
+                break;
+            }
+            if (first) {
+                parseStartLine(lineStart, lineEnd);
+                first = false;
+            } else {
+                parseField(lineStart, lineEnd);
+            }
+            lineStart = next;
+        }
+    }
+
+    private void parseStartLine(int start, int end) {
+        int firstSpace = indexOf((byte) ' ', start, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, end);
+        if (firstSpace < 0) {
+            setRange(0, start, end);
+            setRange(1, end, end);
+            setRange(2, end, end);
+        } else if (secondSpace < 0) {
+            setRange(0, start, firstSpace);
+            setRange(1, firstSpace + 1, end);
+            setRange(2, end, end);
+        } else {
+            setRange(0, start, firstSpace);
+            setRange(1, firstSpace + 1, secondSpace);
+            setRange(2, secondSpace + 1, end);
+        }
+    }
+
+    private void setRange(int index, int start, int end) {
+        startLine[index * 2] = start;
+        startLine[index * 2 + 1] = end;
+    }
+
+    private void parseField(int start, int end) {
+        int colon = indexOf((byte) ':', start, end);
+        if (colon <= start) {
+            return;
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(data[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(data[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        if ((fieldCount + 1) * 4 > fields.length) {
+            int[] larger = new int[fields.length * 2];
+            System.arraycopy(fields, 0, larger, 0, fields.length);
+            fields = larger;
+        }
+        int base = fieldCount * 4;
+        fields[base] = start;
+        fields[base + 1] = nameEnd;
+        fields[base + 2] = valueStart;
+        fields[base + 3] = valueEnd;
+        fieldCount++;
+    }
+
+    /**
+     * 起始行的第 index 个部分（请求为方法、路径、版本；响应为版本、状态码、原因短语），不存在时返回null
+     */
+    public String token(int index) {
+        if (tokens == null) {
+            tokens = new String[3];
+        }
+        String token = tokens[index];
+        if (token == null) {
+            int start = startLine[index * 2];
+            int end = startLine[index * 2 + 1];
+            if (end <= start) {
+                return null;
+            }
+            token = knownToken(start, end);
+            if (token == null) {
+                token = new String(data, start, end - start, StandardCharsets.UTF_8);
+            }
+            tokens[index] = token;
+        }
+        return token;
+    }
+
+    private String knownToken(int start, int end) {
+        for (int i = 0; i < KNOWN_TOKEN_BYTES.length; i++) {
+            if (regionEquals(KNOWN_TOKEN_BYTES[i], start, end)) {
+                return KNOWN_TOKENS[i];
+            }
+        }
+        return null;
+    }
+
+    private boolean regionEquals(byte[] expected, int start, int end) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (data[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按响应行解析状态码，格式错误时返回-1
+     */
+    public int statusCode() {
+        int start = startLine[2];
+        int end = startLine[3];
+        if (end - start != 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return -1;
+            }
+            code = code * 10 + (data[i] - '0');
+        }
+        return code;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * 按名称（不区分大小写）查找第一个头部的值，不存在时返回null
+     */
+    public String header(String name) {
+        int index = indexOfField(name);
+        return index < 0 ? null : fieldValue(index);
+    }
+
+    public boolean hasHeader(String name) {
+        return indexOfField(name) >= 0;
+    }
+
+    /**
+     * 解析Content-Length，不存在时返回-1
+     */
+    public long contentLength() throws IOException {
+        int index = indexOfField("Content-Length");
+        if (index < 0) {
+            return -1;
+        }
+        int start = fields[index * 4 + 2];
+        int end = fields[index * 4 + 3];
+        if (start == end) {
+            throw new IOException("无效的Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                throw new IOException("无效的Content-Length");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    public String fieldName(int index) {
+        int base = index * 4;
+        return new String(data, fields[base], fields[base + 1] - fields[base], StandardCharsets.UTF_8);
+    }
+
+    public String fieldValue(int index) {
+        int base = index * 4;
+        return new String(data, fields[base + 2], fields[base + 3] - fields[base + 2], StandardCharsets.UTF_8);
+    }
+
+    private int indexOfField(String name) {
+        int length = name.length();
+        for (int i = 0; i < fieldCount; i++) {
+            int start = fields[i * 4];
+            if (fields[i * 4 + 1] - start != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && toLower(data[start + j]) == toLower(name.charAt(j))) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 物化为不区分大小写的头部表，同名头部保留最后一个
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < fieldCount; i++) {
+            map.put(fieldName(i), fieldValue(i));
+        }
+        return map;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
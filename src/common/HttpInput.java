@@ -0,0 +1,137 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 带可复用缓冲区的HTTP输入流，一个连接对应一个实例
+ * <p>
+ * 头部按块读取并批量查找空行，不再逐字节调用底层 read()；
+ * 读多的字节留在缓冲区中，供随后的消息体或同一连接上的下一个报文使用
+ */
+public class HttpInput extends InputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private long headStartNanos;
+
+    public HttpInput(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HttpInput(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * 读取下一个起始行和头部块，连接在报文开始前关闭时返回null
+     *
+     * @param maxHeadSize 头部块允许的最大字节数
+     */
+    public HttpHead readHead(int maxHeadSize) throws IOException {
+        //报文之间允许出现多余的空行
+        while (true) {
+            while (pos < limit && (buf[pos] == '\r' || buf[pos] == '\n')) {
+                pos++;
+            }
+            if (pos < limit) {
+                headStartNanos = System.nanoTime();
+                break;
+            }
+            if (!fill()) {
+                return null;
+            }
+        }
+
+        int scanned = 0;
+        while (true) {
+            int end = HttpHead.findHeadEnd(buf, pos + scanned, limit);
+            if (end >= 0) {
+                HttpHead head = HttpHead.parse(buf, pos, end);
+                pos = end;
+                return head;
+            }
+            if (limit - pos >= maxHeadSize) {
+                throw new IOException("头部过大");
+            }
+            //空行最多由3个字节组成，可能跨越两次读取
+            scanned = Math.max(0, limit - pos - 2);
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 向缓冲区追加数据，必要时先把未读数据移到开头或扩容，到达流末尾返回false
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] larger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, larger, 0, limit);
+            buf = larger;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /**
+     * 最近一次 {@link #readHead(int)} 看到报文第一个字节的时刻（System.nanoTime），不含等待报文到来的空闲时间
+     */
+    public long headStartNanos() {
+        return headStartNanos;
+    }
+
+    /**
+     * 缓冲区中尚未消费的字节数
+     */
+    public int buffered() {
+        return limit - pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        //缓冲区已空，大块读取直接交给底层流，避免多一次复制
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
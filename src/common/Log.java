@@ -0,0 +1,238 @@
+package common;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步分级日志
+ * <p>
+ * 调用线程只把日志级别、时间戳、模板和参数放入无锁环形缓冲区，
+ * 模板中的 {} 替换、参数的 toString 和写控制台都由后台线程完成；缓冲区满时丢弃并计数，不阻塞请求。
+ * <ul>
+ * <li>-Dlog.level=DEBUG|INFO|WARN|ERROR|OFF，默认INFO</li>
+ * <li>-Dlog.bodies=true 记录请求和响应体内容，默认只记录字节数</li>
+ * <li>-Dlog.sample=/image=100,/login=1 按路径抽样，每N个请求记录1个，未列出的路径全部记录</li>
+ * <li>-Dlog.bufferSize=8192 环形缓冲区容量，取整到2的幂</li>
+ * </ul>
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static final boolean BODIES = Boolean.getBoolean("log.bodies");
+    private static final Map<String, Integer> SAMPLE_RATES = parseSampleRates(System.getProperty("log.sample", ""));
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static final RingBuffer buffer = new RingBuffer(Integer.getInteger("log.bufferSize", 8192));
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+
+    private record Entry(Level level, long timestamp, String template, Object[] args) {
+    }
+
+    static {
+        Thread drainer = new Thread(Log::drainLoop, "log-writer");
+        drainer.setDaemon(true);
+        drainer.start();
+        //退出时写出缓冲区中剩余的日志
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * 是否记录请求和响应体的内容
+     */
+    public static boolean bodiesEnabled() {
+        return BODIES;
+    }
+
+    /**
+     * 按路径的抽样率决定是否记录本次请求的INFO日志，在请求开始时调用一次
+     */
+    public static boolean sampled(String path) {
+        if (!isEnabled(Level.INFO)) {
+            return false;
+        }
+        Integer rate = path == null ? null : SAMPLE_RATES.get(path);
+        return rate == null || rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    public static void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args);
+    }
+
+    public static void info(String template, Object... args) {
+        log(Level.INFO, template, args);
+    }
+
+    public static void warn(String template, Object... args) {
+        log(Level.WARN, template, args);
+    }
+
+    public static void error(String template, Object... args) {
+        log(Level.ERROR, template, args);
+    }
+
+    public static void log(Level level, String template, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!buffer.offer(new Entry(level, System.currentTimeMillis(), template, args))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 消息体的日志表示：开启 log.bodies 时为文本内容或二进制长度，否则只有长度
+     */
+    public static Object body(byte[] body, String contentType) {
+        if (body == null) {
+            return "";
+        }
+        return new Object() {
+            @Override
+            public String toString() {
+                if (BODIES && (contentType == null || contentType.startsWith("text"))) {
+                    return new String(body, StandardCharsets.UTF_8);
+                }
+                return "[" + (contentType != null && !contentType.startsWith("text") ? "二进制数据" : "消息体") +
+                        " - " + body.length + "字节]";
+            }
+        };
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * 写出缓冲区中的全部日志，返回写出的条数
+     */
+    private static synchronized int drain() {
+        int count = 0;
+        Entry entry;
+        while ((entry = (Entry) buffer.poll()) != null) {
+            out.println(format(entry));
+            count++;
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            out.println(format(new Entry(Level.WARN, System.currentTimeMillis(), "日志缓冲区已满，丢弃了{}条日志",
+                    new Object[]{lost})));
+        }
+        if (count > 0 || lost > 0) {
+            out.flush();
+        }
+        return count;
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder line = new StringBuilder(64 + entry.template().length());
+        line.append(TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.timestamp()), ZoneId.systemDefault())))
+                .append(' ').append(entry.level()).append(' ');
+        String template = entry.template();
+        Object[] args = entry.args();
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (args != null && argIndex < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at);
+            try {
+                line.append(args[argIndex]);
+            } catch (RuntimeException e) {
+                line.append("[toString失败：").append(e).append(']');
+            }
+            argIndex++;
+            from = at + 2;
+        }
+        line.append(template, from, template.length());
+        return line.toString();
+    }
+
+    private static Map<String, Integer> parseSampleRates(String spec) {
+        Map<String, Integer> rates = new HashMap<>();
+        for (String item : spec.split(",")) {
+            int eq = item.indexOf('=');
+            if (eq > 0) {
+                rates.put(item.substring(0, eq).trim(), Integer.parseInt(item.substring(eq + 1).trim()));
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * 有界多生产者单消费者环形队列（Vyukov算法），每个槽位的序号表示它当前可写还是可读
+     */
+    private static final class RingBuffer {
+        private final Object[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        //只由持有Log锁的写出线程访问
+        private long head;
+
+        RingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+            slots = new Object[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Object value) {
+            while (true) {
+                long position = tail.get();
+                int index = (int) (position & mask);
+                long diff = sequences.get(index) - position;
+                if (diff == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots[index] = value;
+                        //发布：读线程看到序号后才读取槽位
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false;
+                }
+            }
+        }
+
+        Object poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Object value = slots[index];
+            slots[index] = null;
+            sequences.set(index, head + slots.length);
+            head++;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求准入控制：限制同时处理的请求数，按排队时延（CoDel思路）快速拒绝
+ * <p>
+ * 请求在获得处理许可前的等待时间即排队时延。每个观察窗口内记录最小时延，
+ * 最小时延超过目标值说明队列一直排不空（持续过载而不是突发），之后的窗口里请求最多只等待目标时延，
+ * 等不到许可立即返回503，让队列保持很短；最小时延回落到目标以下后恢复为最多等待一个窗口
+ */
+class AdmissionControl {
+    private final Semaphore permits;
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    //当前窗口的开始时刻和窗口内的最小排队时延
+    private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean overloaded;
+
+    AdmissionControl(int maxConcurrentRequests, long targetMillis, long intervalMillis) {
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * 为请求获取处理许可，返回true时处理完必须调用 {@link #release()}
+     *
+     * @param arrivalNanos 请求开始排队的时刻，新连接的第一个请求从accept算起
+     */
+    boolean admit(long arrivalNanos) throws InterruptedException {
+        if (!permits.tryAcquire()) {
+            long deadline = arrivalNanos + (overloaded ? targetNanos : intervalNanos);
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0 || !permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                ServerMetrics.SHED_REQUESTS.increment();
+                observe(System.nanoTime() - arrivalNanos);
+                return false;
+            }
+        }
+        ServerMetrics.REQUESTS_IN_FLIGHT.increment();
+        observe(System.nanoTime() - arrivalNanos);
+        return true;
+    }
+
+    void release() {
+        ServerMetrics.REQUESTS_IN_FLIGHT.decrement();
+        permits.release();
+    }
+
+    /**
+     * 记录一次排队时延，窗口结束时根据窗口内的最小时延判断是否处于过载状态
+     */
+    private void observe(long delay) {
+        ServerMetrics.QUEUE_DELAY_NANOS.add(delay);
+        minDelay.accumulateAndGet(delay, Math::min);
+        long now = System.nanoTime();
+        long start = intervalStart.get();
+        if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+            overloaded = minDelay.getAndSet(Long.MAX_VALUE) > targetNanos;
+        }
+    }
+}
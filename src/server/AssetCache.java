@@ -0,0 +1,234 @@
+package server;
+
+import common.HttpDate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 静态文件的内存缓存，按总字节数限制大小，LRU淘汰
+ * <p>
+ * 缓存项保存文件长度、预先生成的Last-Modified和基于内容哈希的ETag，小文件同时保存内容；
+ * 命中时不访问文件系统，超过检查间隔后才重新比较一次文件标识、修改时间和大小，
+ * 上传等已知修改通过 {@link #invalidate(Path)} 立即失效
+ */
+class AssetCache {
+    //每个缓存项除内容外的大致内存开销
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long checkIntervalMillis;
+
+    //访问顺序的LinkedHashMap实现LRU，临界区很短，使用ReentrantLock以免固定虚拟线程
+    private final Map<Path, Asset> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentBytes;
+    //每次失效加一，读文件期间发生过失效的结果不放入缓存，避免旧内容覆盖新上传
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 缓存的文件元数据及预先生成的响应头，body为null表示文件过大只缓存元数据
+     */
+    static final class Asset {
+        final byte[] body;
+        final long size;
+        final Object fileKey;
+        final long lastModified;
+        final String lastModifiedHeader;
+        final String eTag;
+        //上次确认文件未变化的时间
+        volatile long checkedAt;
+
+        Asset(byte[] body, BasicFileAttributes attributes, String eTag, long checkedAt) {
+            this.body = body;
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.lastModifiedHeader = HttpDate.format(lastModified);
+            this.eTag = eTag;
+            this.checkedAt = checkedAt;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified
+                    && Objects.equals(attributes.fileKey(), fileKey);
+        }
+
+        int weight() {
+            return (body == null ? 0 : body.length) + ENTRY_OVERHEAD;
+        }
+    }
+
+    AssetCache(long maxBytes, long maxEntryBytes, long checkIntervalMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * 获取文件的缓存项，未命中时读入缓存；文件不存在时抛出 NoSuchFileException
+     */
+    Asset get(Path path) throws IOException {
+        return get(path, null);
+    }
+
+    /**
+     * 获取已知ETag的文件（如按内容寻址的图片），加载时不再读取旧版 .etag 文件或计算哈希
+     */
+    Asset get(Path path, String knownETag) throws IOException {
+        Asset asset;
+        lock.lock();
+        try {
+            asset = entries.get(path);
+        } finally {
+            lock.unlock();
+        }
+
+        long now = System.currentTimeMillis();
+        if (asset != null) {
+            if (now - asset.checkedAt < checkIntervalMillis) {
+                hits.increment();
+                return asset;
+            }
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes != null && asset.matches(attributes)) {
+                asset.checkedAt = now;
+                hits.increment();
+                return asset;
+            }
+            invalidate(path);
+        }
+
+        misses.increment();
+        return load(path, knownETag, now);
+    }
+
+    private Asset load(Path path, String knownETag, long now) throws IOException {
+        while (true) {
+            long loadGeneration;
+            lock.lock();
+            try {
+                loadGeneration = generation;
+            } finally {
+                lock.unlock();
+            }
+
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes == null) {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            byte[] body = null;
+            String eTag = knownETag != null ? knownETag : EntityTag.readSidecar(path, attributes);
+            if (attributes.size() <= maxEntryBytes) {
+                body = Files.readAllBytes(path);
+                if (eTag == null) {
+                    MessageDigest digest = EntityTag.newDigest();
+                    digest.update(body);
+                    eTag = EntityTag.of(digest);
+                }
+            } else if (eTag == null) {
+                //上传功能之前就存在的大文件，只在首次访问时完整读一遍
+                eTag = EntityTag.compute(path);
+            }
+
+            //上传通过原子重命名替换文件，读后再确认期间文件没有被替换，否则重新加载
+            BasicFileAttributes after = readAttributes(path);
+            Asset asset = new Asset(body, attributes, eTag, now);
+            if (after != null && asset.matches(after) && (body == null || body.length == asset.size)) {
+                put(path, asset, loadGeneration);
+                return asset;
+            }
+        }
+    }
+
+    private void put(Path path, Asset asset, long loadGeneration) {
+        lock.lock();
+        try {
+            if (generation != loadGeneration) {
+                return;
+            }
+            Asset previous = entries.put(path, asset);
+            if (previous != null) {
+                currentBytes -= previous.weight();
+            }
+            currentBytes += asset.weight();
+
+            Iterator<Map.Entry<Path, Asset>> iterator = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<Path, Asset> eldest = iterator.next();
+                currentBytes -= eldest.getValue().weight();
+                iterator.remove();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 立即移除文件的缓存项
+     */
+    void invalidate(Path path) {
+        lock.lock();
+        try {
+            generation++;
+            Asset removed = entries.remove(path);
+            if (removed != null) {
+                currentBytes -= removed.weight();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long size() {
+        lock.lock();
+        try {
+            return currentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AssetCache{hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() +
+                ", bytes=" + size() + "/" + maxBytes + "}";
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range请求头中的一个字节区间，first和last均为闭区间
+ */
+record ByteRange(long first, long last) {
+    /**
+     * 单个请求允许的最大区间数，超过时忽略Range头返回完整内容
+     */
+    static final int MAX_RANGES = 16;
+
+    long length() {
+        return last - first + 1;
+    }
+
+    String contentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * 解析Range头，格式不合法或区间过多时返回null（按没有Range处理），
+     * 没有可满足的区间时返回空列表（应答416）
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String start = spec.substring(0, dash).trim();
+                String end = spec.substring(dash + 1).trim();
+                if (start.isEmpty()) {
+                    //后缀区间：最后N个字节
+                    long suffix = Long.parseLong(end);
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                } else {
+                    long first = Long.parseLong(start);
+                    long last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+                    if (!end.isEmpty() && Long.parseLong(end) < first) {
+                        return null;
+                    }
+                    if (first < size) {
+                        ranges.add(new ByteRange(first, last));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,336 @@
+package server;
+
+import common.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 连接超时管理：每个连接在一个哈希时间轮中登记一个条目，不为每个定时器分配线程或任务
+ * <p>
+ * 连接处于四个阶段之一，各有自己的超时：等待请求头（从连接建立或下一个请求的第一个字节起算，
+ * 中途收到数据不顺延，慢速发送请求头的连接照样到期）、读请求体和写响应（每次有进展时顺延）、
+ * 空闲长连接（等待下一个请求的第一个字节）。
+ * 切换阶段和顺延只写连接自己的两个 volatile 字段，不加锁；时间轮按登记时的到期刻度触发，
+ * 触发时按当前阶段重新计算，未到期的重新登记。只有新的到期时间早于已登记的刻度（如进入空闲阶段）时
+ * 才加锁重新登记
+ * <p>
+ * 阻塞引擎使用一个共享实例，按连接分段加锁，由后台线程推进；
+ * NIO 引擎每个事件循环一个实例，由事件循环线程调用 {@link #expire()}，到期回调也在该线程中执行
+ */
+final class ConnectionTimeouts {
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final long NOT_SCHEDULED = Long.MAX_VALUE;
+
+    /**
+     * 连接的阶段，超时为0表示不限制
+     */
+    enum Phase {
+        HEADER(ServerConfig.HEADER_TIMEOUT_MILLIS),
+        BODY(ServerConfig.BODY_TIMEOUT_MILLIS),
+        WRITE(ServerConfig.WRITE_TIMEOUT_MILLIS),
+        IDLE(ServerConfig.IDLE_TIMEOUT_MILLIS);
+
+        private final long timeoutNanos;
+        //因该阶段超时而关闭的连接数
+        final LongAdder timeouts = new LongAdder();
+
+        Phase(long timeoutMillis) {
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Segment[] segments;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger nextSegment = new AtomicInteger();
+
+    /**
+     * @param segments 分段数，多个线程同时登记和注销连接时减少锁竞争
+     */
+    ConnectionTimeouts(int segments, long tickMillis) {
+        this.segments = new Segment[segments];
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        //一圈覆盖最长的超时，更长的超时在轮转到时重新挂到对应的槽上
+        long longest = 0;
+        for (Phase phase : Phase.values()) {
+            longest = Math.max(longest, phase.timeoutNanos);
+        }
+        int slots = (int) Math.min(4096, longest / tickNanos + 1);
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(slots);
+        }
+    }
+
+    /**
+     * 启动后台线程按刻度推进，用于阻塞引擎
+     */
+    ConnectionTimeouts start(String threadName) {
+        Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name(threadName).factory())
+                .scheduleWithFixedDelay(this::expire, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        return this;
+    }
+
+    /**
+     * 登记新连接，初始阶段为等待请求头
+     *
+     * @param onTimeout 到期时调用，负责关闭连接；之后仍需调用 {@link Timer#cancel()}
+     */
+    Timer register(Runnable onTimeout) {
+        Segment segment = segments[Math.floorMod(nextSegment.getAndIncrement(), segments.length)];
+        Timer timer = new Timer(segment, onTimeout);
+        timer.phase = Phase.HEADER;
+        timer.since = System.nanoTime();
+        segment.add(timer);
+        return timer;
+    }
+
+    /**
+     * 推进到当前刻度，关闭到期的连接；回调在锁外执行
+     */
+    void expire() {
+        long now = System.nanoTime();
+        List<Timer> expired = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.expire(now, expired);
+        }
+        for (Timer timer : expired) {
+            timer.phase.timeouts.increment();
+            Log.debug("连接在{}阶段超时，关闭连接", timer.phase.label());
+            try {
+                timer.onTimeout.run();
+            } catch (RuntimeException e) {
+                Log.warn("关闭超时连接失败：{}", e.getMessage());
+            }
+        }
+    }
+
+    private long tickOf(long nanos) {
+        //向上取整，保证不会提前到期
+        return Math.max(0, nanos - startNanos + tickNanos - 1) / tickNanos;
+    }
+
+    /**
+     * 一个连接的超时状态，阶段切换由连接所在的线程调用
+     */
+    final class Timer {
+        private final Segment segment;
+        private final Runnable onTimeout;
+        private int entry = -1;
+        private volatile Phase phase;
+        //进入当前阶段或最近一次有进展的时刻
+        private volatile long since;
+        //时间轮中登记的到期刻度，由段锁保护写入
+        private volatile long scheduledTick = NOT_SCHEDULED;
+        private volatile boolean expired;
+
+        private Timer(Segment segment, Runnable onTimeout) {
+            this.segment = segment;
+            this.onTimeout = onTimeout;
+        }
+
+        /**
+         * 进入新的阶段，或在读写阶段有进展时顺延
+         */
+        void enter(Phase next) {
+            since = System.nanoTime();
+            phase = next;
+            //与推进线程写 scheduledTick 后再读阶段的顺序相对，两边至少有一方看到对方的写入
+            if (next.timeoutNanos > 0 && tickOf(since + next.timeoutNanos) < scheduledTick) {
+                segment.reschedule(this);
+            }
+        }
+
+        /**
+         * 收到数据：空闲连接开始等待请求头，读请求体时顺延；等待请求头期间不顺延
+         */
+        void received() {
+            Phase current = phase;
+            if (current == Phase.IDLE) {
+                enter(Phase.HEADER);
+            } else if (current != Phase.HEADER) {
+                enter(Phase.BODY);
+            }
+        }
+
+        /**
+         * 一个请求处理完毕：缓冲区中已有下一个请求的一部分时等待请求头，否则进入空闲；
+         * 已在等待请求头或空闲时不变，避免重复调用顺延请求头超时
+         */
+        void requestDone(boolean pending) {
+            Phase current = phase;
+            if (current == Phase.BODY || current == Phase.WRITE) {
+                enter(pending ? Phase.HEADER : Phase.IDLE);
+            }
+        }
+
+        /**
+         * 包装阻塞引擎的套接字输入流，每次读到数据时调用 {@link #received()}
+         */
+        InputStream track(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        received();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        received();
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * 连接是否因超时被关闭，用于区分超时和其他I/O错误
+         */
+        boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * 连接关闭时调用，从时间轮中移除
+         */
+        void cancel() {
+            segment.remove(this);
+        }
+
+        /**
+         * 按当前阶段计算到期刻度，不限制时返回 NOT_SCHEDULED
+         */
+        private long deadlineTick() {
+            Phase current = phase;
+            return current.timeoutNanos > 0 ? tickOf(since + current.timeoutNanos) : NOT_SCHEDULED;
+        }
+    }
+
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TimerWheel wheel;
+        private Timer[] timers = new Timer[INITIAL_SEGMENT_CAPACITY];
+        private int[] free = new int[16];
+        private int freeCount;
+        private int allocated;
+
+        Segment(int slots) {
+            this.wheel = new TimerWheel(slots, 0);
+            wheel.ensureCapacity(INITIAL_SEGMENT_CAPACITY);
+        }
+
+        void add(Timer timer) {
+            lock.lock();
+            try {
+                int entry = allocate();
+                timers[entry] = timer;
+                timer.entry = entry;
+                schedule(timer);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void reschedule(Timer timer) {
+            lock.lock();
+            try {
+                if (timer.entry >= 0 && !timer.expired) {
+                    schedule(timer);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(Timer timer) {
+            lock.lock();
+            try {
+                int entry = timer.entry;
+                if (entry < 0) {
+                    return;
+                }
+                wheel.cancel(entry);
+                timers[entry] = null;
+                timer.entry = -1;
+                timer.scheduledTick = NOT_SCHEDULED;
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, free.length * 2);
+                }
+                free[freeCount++] = entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void expire(long now, List<Timer> expired) {
+            //只推进到已经完整经过的刻度
+            long tick = (now - startNanos) / tickNanos;
+            lock.lock();
+            try {
+                wheel.advance(tick, entry -> {
+                    Timer timer = timers[entry];
+                    timer.scheduledTick = NOT_SCHEDULED;
+                    Phase phase = timer.phase;
+                    if (phase.timeoutNanos > 0 && now - timer.since >= phase.timeoutNanos) {
+                        timer.expired = true;
+                        expired.add(timer);
+                    } else {
+                        schedule(timer);
+                    }
+                });
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 按当前阶段登记；写入刻度后再次检查阶段，期间被切换时重新计算
+         */
+        private void schedule(Timer timer) {
+            Phase phase;
+            long since;
+            do {
+                phase = timer.phase;
+                since = timer.since;
+                long deadline = timer.deadlineTick();
+                timer.scheduledTick = deadline;
+                if (deadline == NOT_SCHEDULED) {
+                    wheel.cancel(timer.entry);
+                } else {
+                    wheel.schedule(timer.entry, deadline);
+                }
+            } while (timer.phase != phase || timer.since != since);
+        }
+
+        private int allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            int entry = allocated++;
+            if (entry == timers.length) {
+                timers = Arrays.copyOf(timers, entry * 2);
+                wheel.ensureCapacity(entry * 2);
+            }
+            return entry;
+        }
+    }
+}
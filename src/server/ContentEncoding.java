@@ -0,0 +1,195 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 响应压缩：Accept-Encoding 协商、gzip/deflate 编码，以及内容不变的响应体的压缩结果缓存
+ * <p>
+ * Deflater 持有本地内存，创建代价较高，放在池中复用；
+ * gzip 由原始deflate数据加上手工写出的头部和CRC尾部组成，不经过 GZIPOutputStream
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    //nowrap为true的用于gzip，false的输出带zlib头的deflate
+    private static final ConcurrentLinkedQueue<Deflater> RAW_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Deflater> ZLIB_DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    //以响应体数组本身为键（数组按引用比较），数组不再使用后缓存项随之回收
+    private static final Map<byte[], byte[][]> CACHE = new WeakHashMap<>();
+    private static final ReentrantLock CACHE_LOCK = new ReentrantLock();
+
+    static final LongAdder BYTES_IN = new LongAdder();
+    static final LongAdder BYTES_OUT = new LongAdder();
+    static final LongAdder CACHE_HITS = new LongAdder();
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * 按 Accept-Encoding 选择编码，优先gzip；q=0 表示拒绝，不接受压缩时返回null
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || !ServerConfig.COMPRESSION_ENABLED) {
+            return null;
+        }
+        //-1 表示没有列出
+        double gzip = -1;
+        double deflate = -1;
+        double wildcard = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = q;
+                case DEFLATE -> deflate = q;
+                case "*" -> wildcard = q;
+                default -> {
+                }
+            }
+        }
+        //没有列出的编码按 * 的权重处理
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * 值得压缩的文本类内容，PNG等已压缩的格式不在其中
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/") || contentType.startsWith("application/json")
+                || contentType.startsWith("application/javascript") || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * 压缩响应体；stable 为true时结果按数组缓存，同一数组只压缩一次
+     */
+    static byte[] encode(byte[] body, String encoding, boolean stable) {
+        int variant = GZIP.equals(encoding) ? 0 : 1;
+        if (stable) {
+            CACHE_LOCK.lock();
+            try {
+                byte[][] variants = CACHE.get(body);
+                if (variants != null && variants[variant] != null) {
+                    CACHE_HITS.increment();
+                    return variants[variant];
+                }
+            } finally {
+                CACHE_LOCK.unlock();
+            }
+        }
+
+        byte[] encoded = variant == 0 ? gzip(body) : deflate(body);
+        BYTES_IN.add(body.length);
+        BYTES_OUT.add(encoded.length);
+
+        if (stable) {
+            CACHE_LOCK.lock();
+            try {
+                CACHE.computeIfAbsent(body, b -> new byte[2][])[variant] = encoded;
+            } finally {
+                CACHE_LOCK.unlock();
+            }
+        }
+        return encoded;
+    }
+
+    private static byte[] gzip(byte[] body) {
+        Deflater deflater = borrow(RAW_DEFLATERS, true);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            byte[] out = compress(deflater, body, GZIP_HEADER.length, 8);
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            int trailer = out.length - 8;
+            writeIntLE(out, trailer, (int) crc.getValue());
+            writeIntLE(out, trailer + 4, body.length);
+            return out;
+        } finally {
+            release(RAW_DEFLATERS, deflater);
+        }
+    }
+
+    private static byte[] deflate(byte[] body) {
+        Deflater deflater = borrow(ZLIB_DEFLATERS, false);
+        try {
+            return compress(deflater, body, 0, 0);
+        } finally {
+            release(ZLIB_DEFLATERS, deflater);
+        }
+    }
+
+    /**
+     * 压缩到新数组，前后分别预留 prefix 和 suffix 个字节
+     */
+    private static byte[] compress(Deflater deflater, byte[] body, int prefix, int suffix) {
+        deflater.setInput(body);
+        deflater.finish();
+        //多数文本能压缩到原来的一半以下，不够时扩容
+        byte[] buffer = new byte[prefix + Math.max(64, body.length / 2) + suffix];
+        int length = prefix;
+        while (!deflater.finished()) {
+            if (length == buffer.length - suffix) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - suffix - length);
+        }
+        return Arrays.copyOf(buffer, length + suffix);
+    }
+
+    private static Deflater borrow(ConcurrentLinkedQueue<Deflater> pool, boolean nowrap) {
+        Deflater deflater = pool.poll();
+        return deflater != null ? deflater : new Deflater(ServerConfig.COMPRESSION_LEVEL, nowrap);
+    }
+
+    private static void release(ConcurrentLinkedQueue<Deflater> pool, Deflater deflater) {
+        deflater.reset();
+        //池的大小只是近似限制
+        if (pool.size() < POOL_SIZE) {
+            pool.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * 基于内容哈希（SHA-256）的强实体标签
+ * <p>
+ * 按内容寻址的图片直接以ID作为标签（见 {@link ImageStore}）；其他文件首次加载时计算哈希。
+ * 旧版上传在同目录留下的 .etag 文件（标签 + 文件标识、大小和修改时间）仍会读取，与文件当前版本不符时忽略
+ */
+final class EntityTag {
+    private static final String SIDECAR_SUFFIX = ".etag";
+    private static final String[] ENCODING_SUFFIXES = {"-" + ContentEncoding.GZIP + "\"", "-" + ContentEncoding.DEFLATE + "\""};
+
+    private EntityTag() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String of(MessageDigest digest) {
+        return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+    }
+
+    /**
+     * 读取整个文件计算标签，用于没有有效 .etag 文件的旧文件
+     */
+    static String compute(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return of(digest);
+    }
+
+    /**
+     * 读取旧版上传写下的、与文件当前版本匹配的标签，没有或已过期时返回null
+     */
+    static String readSidecar(Path file, BasicFileAttributes attributes) throws IOException {
+        String content;
+        try {
+            content = Files.readString(sidecarOf(file), StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String[] parts = content.trim().split("\n");
+        if (parts.length != 2 || !parts[1].equals(fingerprint(attributes))) {
+            return null;
+        }
+        return parts[0];
+    }
+
+    private static Path sidecarOf(Path file) {
+        return file.resolveSibling(file.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    private static String fingerprint(BasicFileAttributes attributes) {
+        return attributes.fileKey() + " " + attributes.size() + " " + attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * 压缩后的表示使用不同的强标签，在引号内加上编码后缀
+     */
+    static String withEncoding(String eTag, String encoding) {
+        return eTag.endsWith("\"") ? eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"" : eTag;
+    }
+
+    /**
+     * If-None-Match 使用弱比较：忽略 W/ 前缀和压缩编码后缀，* 匹配任意存在的资源
+     */
+    static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String opaque = stripWeak(eTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            if (stripWeak(candidate.trim()).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+        for (String suffix : ENCODING_SUFFIXES) {
+            if (tag.endsWith(suffix)) {
+                return tag.substring(0, tag.length() - suffix.length()) + "\"";
+            }
+        }
+        return tag;
+    }
+}
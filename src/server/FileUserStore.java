@@ -0,0 +1,466 @@
+package server;
+
+import common.Log;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 基于预写日志和快照的用户存储
+ * <p>
+ * 内存索引为 ConcurrentHashMap，登录只做无锁读取；注册先在索引中占位，再交给提交线程追加到日志。
+ * 提交线程把同时到达的多条记录合并为一次写入和一次 fsync（组提交），记录落盘后注册才完成。
+ * 密码哈希在专用线程池中计算，调用线程不等待哈希和落盘。
+ * 日志超过阈值或距上次快照超过间隔时，提交线程把已落盘的账号写成新快照并清空日志
+ * <p>
+ * 启动时以内存映射读取快照，再重放日志，日志末尾不完整的记录（写入中途崩溃）被截掉。
+ * 文件中每条记录为 长度(int) + CRC32(int) + 内容，内容为 用户名(UTF) + 迭代次数(int) + 盐 + PBKDF2-HMAC-SHA256(盐, 密码)；
+ * 早期版本的记录没有迭代次数，哈希为 SHA-256(盐 + 密码)，这样的账号在下次登录成功时按当前迭代次数重新哈希并追加记录
+ */
+class FileUserStore implements UserStore {
+    private static final String SNAPSHOT_FILE = "users.snapshot";
+    private static final String LOG_FILE = "users.wal";
+    //快照文件头：USR1
+    private static final int SNAPSHOT_MAGIC = 0x55535231;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    //早期版本记录的迭代次数，表示单次加盐SHA-256
+    private static final int LEGACY_ITERATIONS = 0;
+    //一次组提交最多合并的记录数
+    private static final int MAX_BATCH = 1024;
+    //生成快照失败后的重试间隔
+    private static final long SNAPSHOT_RETRY_MILLIS = 10_000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    //计算密码哈希的线程池，所有存储实例共用
+    private static final ExecutorService HASHING = Executors.newFixedThreadPool(ServerConfig.PASSWORD_HASH_THREADS,
+            Thread.ofPlatform().daemon().name("user-store-hash-", 0).factory());
+
+    private final Path directory;
+    private final Path snapshotPath;
+    private final FileChannel log;
+    private final long compactBytes;
+    private final long snapshotIntervalMillis;
+    private final boolean fsync;
+
+    private final Map<String, Credential> users = new ConcurrentHashMap<>();
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    //以下状态只由提交线程修改
+    private volatile long logSize;
+    private long lastSnapshot = System.currentTimeMillis();
+    private long lastSnapshotAttempt;
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder committedRecords = new LongAdder();
+
+    /**
+     * 加盐哈希后的密码
+     */
+    private static final class Credential {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+        //记录已落盘，只有落盘的账号才能登录、才会写入快照
+        volatile boolean durable;
+
+        Credential(int iterations, byte[] salt, byte[] hash, boolean durable) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+            this.durable = durable;
+        }
+
+        static Credential create(String password, boolean durable) {
+            byte[] salt = new byte[SALT_LENGTH];
+            RANDOM.nextBytes(salt);
+            int iterations = ServerConfig.PASSWORD_ITERATIONS;
+            return new Credential(iterations, salt, hash(iterations, salt, password), durable);
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, hash(iterations, salt, password));
+        }
+    }
+
+    private record PendingRecord(byte[] bytes, Credential credential, CompletableFuture<Void> done) {
+    }
+
+    private FileUserStore(Path directory, long compactBytes, long snapshotIntervalMillis, boolean fsync)
+            throws IOException {
+        this.directory = directory;
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        this.compactBytes = compactBytes;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.fsync = fsync;
+
+        loadSnapshot();
+        this.log = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replayLog();
+    }
+
+    /**
+     * 打开目录下的用户存储，目录不存在时创建
+     */
+    static FileUserStore open(Path directory, long compactBytes, long snapshotIntervalMillis, boolean fsync)
+            throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        FileUserStore store = new FileUserStore(directory, compactBytes, snapshotIntervalMillis, fsync);
+        Log.info("已加载{}个用户，耗时{}ms", store.size(), (System.nanoTime() - start) / 1_000_000);
+        Thread.ofPlatform().daemon().name("user-store-commit").start(store::commitLoop);
+        return store;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> register(String username, String password) {
+        //用户名已存在时不必计算哈希
+        if (users.containsKey(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        //编码和哈希在哈希线程池中完成，提交线程只负责写入
+        return CompletableFuture.supplyAsync(() -> {
+            Credential credential = Credential.create(password, false);
+            try {
+                return new PendingRecord(encode(username, credential), credential, new CompletableFuture<>());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, HASHING).thenCompose(record -> {
+            if (users.putIfAbsent(username, record.credential()) != null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            queue.add(record);
+            return record.done().handle((ignored, error) -> {
+                if (error != null) {
+                    users.remove(username, record.credential());
+                    throw new CompletionException(new IOException("写入用户日志失败：" + error.getMessage(), error));
+                }
+                return true;
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authenticate(String username, String password) {
+        Credential credential = users.get(username);
+        if (credential == null || !credential.durable) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            if (!credential.matches(password)) {
+                return false;
+            }
+            if (credential.iterations != ServerConfig.PASSWORD_ITERATIONS) {
+                rehash(username, credential, password);
+            }
+            return true;
+        }, HASHING);
+    }
+
+    /**
+     * 按当前迭代次数重新哈希并追加记录，不等待落盘；写入失败时旧记录仍然有效，下次登录再试
+     */
+    private void rehash(String username, Credential old, String password) {
+        Credential upgraded = Credential.create(password, true);
+        try {
+            byte[] bytes = encode(username, upgraded);
+            if (users.replace(username, old, upgraded)) {
+                queue.add(new PendingRecord(bytes, upgraded, new CompletableFuture<>()));
+            }
+        } catch (IOException e) {
+            Log.warn("更新密码哈希失败：{}", e.getMessage());
+        }
+    }
+
+    @Override
+    public int size() {
+        int count = 0;
+        for (Credential credential : users.values()) {
+            if (credential.durable) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(size(), logSize, commits.sum(), committedRecords.sum());
+    }
+
+    private void commitLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                PendingRecord first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    //等待上一次 fsync 期间到达的注册在这里一起提交
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    commit(batch);
+                    batch.clear();
+                }
+                snapshotIfNeeded();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error("用户日志提交线程错误：{}", e.getMessage());
+            }
+        }
+    }
+
+    private void commit(List<PendingRecord> batch) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).bytes());
+            total += buffers[i].remaining();
+        }
+
+        try {
+            long remaining = total;
+            while (remaining > 0) {
+                remaining -= log.write(buffers);
+            }
+            if (fsync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            Log.error("写入用户日志失败：{}", e.getMessage());
+            //写入了多少不确定，截回本批之前的长度
+            try {
+                log.truncate(logSize);
+                log.position(logSize);
+            } catch (IOException truncateFailure) {
+                Log.error("截断用户日志失败：{}", truncateFailure.getMessage());
+            }
+            for (PendingRecord record : batch) {
+                record.done().completeExceptionally(e);
+            }
+            return;
+        }
+
+        logSize += total;
+        commits.increment();
+        committedRecords.add(batch.size());
+        for (PendingRecord record : batch) {
+            record.credential().durable = true;
+            record.done().complete(null);
+        }
+    }
+
+    private void snapshotIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (logSize == 0 || now - lastSnapshotAttempt < SNAPSHOT_RETRY_MILLIS) {
+            return;
+        }
+        if (logSize < compactBytes && now - lastSnapshot < snapshotIntervalMillis) {
+            return;
+        }
+        lastSnapshotAttempt = now;
+        try {
+            writeSnapshot();
+            lastSnapshot = now;
+        } catch (IOException e) {
+            Log.warn("生成用户快照失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 写入新快照并清空日志。快照通过原子重命名替换，
+     * 重命名之后、清空日志之前崩溃时，重放日志只会重复写入相同的账号
+     */
+    private void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        Path temp = Files.createTempFile(directory, "users-", ".tmp");
+        int count = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+                new DataOutputStream(out).writeInt(SNAPSHOT_MAGIC);
+                for (Map.Entry<String, Credential> entry : users.entrySet()) {
+                    if (entry.getValue().durable) {
+                        out.write(encode(entry.getKey(), entry.getValue()));
+                        count++;
+                    }
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        log.truncate(0);
+        log.position(0);
+        if (fsync) {
+            log.force(false);
+        }
+        logSize = 0;
+        Log.info("已生成用户快照：{}个用户，耗时{}ms", count, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 让重命名本身落盘，不支持打开目录的平台上忽略
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("用户快照过大");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 4 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("用户快照格式错误：" + snapshotPath);
+            }
+            //快照通过原子重命名生成，不应有不完整的记录
+            if (readRecords(buffer) != size) {
+                throw new IOException("用户快照已损坏：" + snapshotPath);
+            }
+        }
+    }
+
+    /**
+     * 重放日志，从第一条不完整或校验失败的记录处截断
+     */
+    private void replayLog() throws IOException {
+        long size = log.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("用户日志过大");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        long valid = readRecords(buffer);
+        if (valid < size) {
+            Log.warn("用户日志末尾有{}字节不完整的记录，已截断", size - valid);
+            log.truncate(valid);
+            log.force(false);
+        }
+        log.position(valid);
+        logSize = valid;
+    }
+
+    /**
+     * 从缓冲区当前位置读取记录放入索引，返回最后一条完整记录的结束位置
+     */
+    private long readRecords(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH || length > buffer.remaining()) {
+                return start;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                String username = in.readUTF();
+                //早期版本的记录没有迭代次数
+                int iterations = in.available() == SALT_LENGTH + HASH_LENGTH ? LEGACY_ITERATIONS : in.readInt();
+                byte[] salt = in.readNBytes(SALT_LENGTH);
+                byte[] hash = in.readNBytes(HASH_LENGTH);
+                if (hash.length != HASH_LENGTH || in.available() != 0) {
+                    return start;
+                }
+                users.put(username, new Credential(iterations, salt, hash, true));
+            } catch (IOException e) {
+                return start;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static byte[] encode(String username, Credential credential) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER + 64);
+        //用户名编码后超过64KB时 writeUTF 抛出 UTFDataFormatException
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0);
+        out.writeUTF(username);
+        out.writeInt(credential.iterations);
+        out.write(credential.salt);
+        out.write(credential.hash);
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER, record.length - RECORD_HEADER);
+        ByteBuffer.wrap(record).putInt(record.length - RECORD_HEADER).putInt((int) crc.getValue());
+        return record;
+    }
+
+    private static byte[] hash(int iterations, byte[] salt, String password) {
+        try {
+            if (iterations == LEGACY_ITERATIONS) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(salt);
+                return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            }
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * application/x-www-form-urlencoded 格式的表单和查询字符串
+ * <p>
+ * 解析只在原始字节上记录每个参数的起止位置，不复制数据也不建立哈希表；
+ * 按名称查找时边解码边比较，取值时一次完成百分号和加号解码。
+ * 参数数量有上限，查找是线性的，不会受到哈希碰撞攻击
+ */
+final class FormData {
+    private static final FormData EMPTY = new FormData(new byte[0], new int[0], 0);
+
+    private final byte[] data;
+    //每个参数4个值：名称起止、值起止
+    private final int[] bounds;
+    private final int size;
+
+    private FormData(byte[] data, int[] bounds, int size) {
+        this.data = data;
+        this.bounds = bounds;
+        this.size = size;
+    }
+
+    /**
+     * 解析 data[offset, offset + length)，参数超过 maxParams 个时抛出 IllegalArgumentException；
+     * 没有=或名称为空的参数被忽略
+     */
+    static FormData parse(byte[] data, int offset, int length, int maxParams) {
+        if (data == null || length == 0) {
+            return EMPTY;
+        }
+        int[] bounds = new int[Math.min(countParams(data, offset, length), maxParams) * 4];
+        int size = 0;
+        int end = offset + length;
+        int start = offset;
+        while (start <= end) {
+            int pairEnd = start;
+            int eq = -1;
+            while (pairEnd < end && data[pairEnd] != '&') {
+                if (eq < 0 && data[pairEnd] == '=') {
+                    eq = pairEnd;
+                }
+                pairEnd++;
+            }
+            if (eq > start) {
+                if (size == maxParams) {
+                    throw new IllegalArgumentException("参数数量超过" + maxParams + "个");
+                }
+                int base = size * 4;
+                bounds[base] = start;
+                bounds[base + 1] = eq;
+                bounds[base + 2] = eq + 1;
+                bounds[base + 3] = pairEnd;
+                size++;
+            }
+            start = pairEnd + 1;
+        }
+        return new FormData(data, bounds, size);
+    }
+
+    static FormData parse(byte[] data, int maxParams) {
+        return data == null ? EMPTY : parse(data, 0, data.length, maxParams);
+    }
+
+    private static int countParams(byte[] data, int offset, int length) {
+        int count = 1;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '&') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String name(int index) {
+        return decode(bounds[index * 4], bounds[index * 4 + 1]);
+    }
+
+    String value(int index) {
+        return decode(bounds[index * 4 + 2], bounds[index * 4 + 3]);
+    }
+
+    /**
+     * 参数的值，同名参数以最后一个为准，没有时返回null
+     */
+    String get(String name) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (nameEquals(i, name)) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解码后的名称与 name 比较，ASCII名称不产生任何对象
+     */
+    private boolean nameEquals(int index, String name) {
+        int pos = bounds[index * 4];
+        int end = bounds[index * 4 + 1];
+        int i = 0;
+        while (pos < end) {
+            int b = data[pos] & 0xFF;
+            if (b == '+') {
+                b = ' ';
+                pos++;
+            } else if (b == '%' && isEscape(pos, end)) {
+                b = (hex(data[pos + 1]) << 4) | hex(data[pos + 2]);
+                pos += 3;
+            } else {
+                pos++;
+            }
+            if (b >= 0x80) {
+                return name.equals(name(index));
+            }
+            if (i == name.length() || name.charAt(i) != b) {
+                return false;
+            }
+            i++;
+        }
+        return i == name.length();
+    }
+
+    /**
+     * 一次完成百分号和加号解码，按UTF-8转换；不合法的转义按原样保留
+     */
+    private String decode(int start, int end) {
+        int i = start;
+        while (i < end && data[i] != '%' && data[i] != '+') {
+            i++;
+        }
+        if (i == end) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+        byte[] decoded = new byte[end - start];
+        int n = i - start;
+        System.arraycopy(data, start, decoded, 0, n);
+        while (i < end) {
+            byte b = data[i];
+            if (b == '+') {
+                decoded[n++] = ' ';
+                i++;
+            } else if (b == '%' && isEscape(i, end)) {
+                decoded[n++] = (byte) ((hex(data[i + 1]) << 4) | hex(data[i + 2]));
+                i += 3;
+            } else {
+                decoded[n++] = b;
+                i++;
+            }
+        }
+        return new String(decoded, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private boolean isEscape(int pos, int end) {
+        return pos + 2 < end && hex(data[pos + 1]) >= 0 && hex(data[pos + 2]) >= 0;
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -1,100 +1,268 @@
 package server;
 
+import common.BodyTooLargeException;
+import common.ChunkedInputStream;
+import common.FixedLengthInputStream;
+import common.HttpHead;
+import common.HttpInput;
+import common.Log;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.Map;
 
-@Getter
 public class HttpRequest {
-    private String method;
+    //请求处理完后最多丢弃多少未读请求体以复用连接，超过则直接关闭连接
+    private static final int MAX_DISCARD_SIZE = 64 * 1024;
+
+    private final HttpHead head;
+    private final HttpInput input;
     private String path;
-    private String protocol;
-    private final Map<String, String> headers;
+    private String query;
+    //路由匹配得到的路径参数名及其在path中的起止位置
+    private String[] pathParamNames;
+    private int[] pathParamBounds;
+    private Map<String, String> headers;
+    private InputStream bodyStream;
     private byte[] body;
+    //NIO引擎中暂存到临时文件的大请求体
+    private boolean spooled;
+    //从收到第一个字节到请求头解析完成的耗时
+    @Getter
+    @Setter(AccessLevel.PACKAGE)
+    private long parseNanos;
 
     public HttpRequest(InputStream inputStream) throws IOException {
-        this.headers = new HashMap<>();
-        parseRequest(inputStream);
+        this(inputStream instanceof HttpInput input ? input : new HttpInput(inputStream));
+    }
+
+    /**
+     * 只解析请求行和请求头，请求体留在连接中，通过 {@link #getBodyStream()} 按需读取
+     */
+    public HttpRequest(HttpInput input) throws IOException {
+        this.input = input;
+        this.head = input.readHead(ServerConfig.MAX_HEADER_SIZE);
+        this.parseNanos = head == null ? 0 : System.nanoTime() - input.headStartNanos();
     }
 
-    private void parseRequest(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    /**
+     * 由已解析的头部和完整请求体构造，供NIO引擎使用
+     */
+    HttpRequest(HttpHead head, byte[] body) {
+        this.input = null;
+        this.head = head;
+        this.body = body;
+        this.bodyStream = new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
 
-        //解析请求行
-        String requestLine = readLine(inputStream, lineBuffer);
-        if (requestLine != null) {
-            String[] parts = requestLine.split(" ");
-            if (parts.length >= 3) {
-                this.method = parts[0];
-                this.path = parts[1];
-                this.protocol = parts[2];
+    /**
+     * 由已解析的头部和暂存在临时文件中的请求体构造，供NIO引擎使用，body 为解码后的请求体
+     */
+    HttpRequest(HttpHead head, InputStream body) {
+        this.input = null;
+        this.head = head;
+        this.bodyStream = body;
+        this.spooled = true;
+    }
+
+    public String getMethod() {
+        return head == null ? null : head.token(0);
+    }
+
+    /**
+     * 请求目标中?之前的路径部分，请求行中没有请求目标时返回null
+     */
+    public String getPath() {
+        if (path == null && head != null) {
+            String target = head.token(1);
+            if (target == null) {
+                return null;
+            }
+            int question = target.indexOf('?');
+            if (question < 0) {
+                path = target;
+            } else {
+                path = target.substring(0, question);
+                query = target.substring(question + 1);
             }
         }
+        return path;
+    }
 
-        //解析请求头
-        String line;
-        while ((line = readLine(inputStream, lineBuffer)) != null && !line.isEmpty()) {
-            int colonIndex = line.indexOf(":");
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
+    /**
+     * 请求目标中?之后的查询字符串，没有时返回null
+     */
+    public String getQueryString() {
+        getPath();
+        return query;
+    }
+
+    /**
+     * 路由模式中 {name} 段匹配到的值，没有该参数时返回null
+     */
+    public String getPathParam(String name) {
+        if (pathParamNames == null) {
+            return null;
+        }
+        for (int i = 0; i < pathParamNames.length; i++) {
+            if (pathParamNames[i].equals(name)) {
+                return path.substring(pathParamBounds[i * 2], pathParamBounds[i * 2 + 1]);
             }
         }
+        return null;
+    }
 
-        //解析请求体
-        if (headers.containsKey("Content-Length")) {
-            int contentLength = Integer.parseInt(headers.get("Content-Length"));
-            if (contentLength > 0) {
-                byte[] bodyBytes = new byte[contentLength];
-                int bytesRead = 0;
-                while (bytesRead < contentLength) {
-                    int n = inputStream.read(bodyBytes, bytesRead, contentLength - bytesRead);
-                    if (n == -1) break;
-                    bytesRead += n;
-                }
-                this.body = bodyBytes;
+    void setPathParams(String[] names, int[] bounds) {
+        this.pathParamNames = names;
+        this.pathParamBounds = bounds;
+    }
+
+    public String getProtocol() {
+        return head == null ? null : head.token(2);
+    }
+
+    /**
+     * 按名称（不区分大小写）获取请求头，不会物化整个头部表
+     */
+    public String getHeader(String name) {
+        return head == null ? null : head.header(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = head == null ? Map.of() : head.toMap();
+        }
+        return headers;
+    }
+
+    /**
+     * 请求头中的Content-Length，没有时返回-1
+     */
+    public long getContentLength() throws IOException {
+        return head == null ? -1 : head.contentLength();
+    }
+
+    public boolean isChunked() {
+        String transferEncoding = getHeader("Transfer-Encoding");
+        return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+    }
+
+    public boolean hasBody() throws IOException {
+        if (input == null) {
+            return spooled || (body != null && body.length > 0);
+        }
+        return isChunked() || getContentLength() > 0;
+    }
+
+    /**
+     * 请求声明的长度已超过允许的最大请求体
+     */
+    boolean exceedsMaxBodySize() throws IOException {
+        return !isChunked() && getContentLength() > ServerConfig.MAX_BODY_SIZE;
+    }
+
+    boolean expectsContinue() {
+        return "100-continue".equalsIgnoreCase(getHeader("Expect"));
+    }
+
+    /**
+     * 请求体的有界输入流，读到请求体末尾时返回-1，分块请求体超过最大长度时抛出 {@link BodyTooLargeException}
+     */
+    public InputStream getBodyStream() throws IOException {
+        if (bodyStream == null) {
+            if (isChunked()) {
+                bodyStream = new ChunkedInputStream(input, ServerConfig.MAX_BODY_SIZE);
+            } else {
+                bodyStream = new FixedLengthInputStream(input, Math.max(0, getContentLength()));
             }
         }
+        return bodyStream;
     }
 
-    private String readLine(InputStream inputStream, ByteArrayOutputStream lineBuffer) throws IOException {
-        lineBuffer.reset();
-        int b;
-        while ((b = inputStream.read()) != -1) {
-            if (b == '\n') {
-                break;
+    /**
+     * 把请求体整体读入内存，适用于表单等小请求体，没有请求体时返回null
+     */
+    public byte[] getBody() throws IOException {
+        if (body == null && hasBody()) {
+            if (getContentLength() > ServerConfig.MAX_BUFFERED_BODY_SIZE) {
+                throw new BodyTooLargeException(ServerConfig.MAX_BUFFERED_BODY_SIZE);
             }
-            if (b != '\r') {
-                lineBuffer.write(b);
+            byte[] bytes = getBodyStream().readNBytes(ServerConfig.MAX_BUFFERED_BODY_SIZE + 1);
+            if (bytes.length > ServerConfig.MAX_BUFFERED_BODY_SIZE) {
+                throw new BodyTooLargeException(ServerConfig.MAX_BUFFERED_BODY_SIZE);
             }
+            body = bytes;
         }
+        return body;
+    }
 
-        if (lineBuffer.size() == 0 && b == -1) {
-            return null;
+    /**
+     * 丢弃处理器没有读完的请求体，返回连接能否继续用于下一个请求
+     */
+    boolean discardBody() {
+        try {
+            InputStream stream = getBodyStream();
+            byte[] buffer = new byte[8192];
+            long discarded = 0;
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                discarded += n;
+                if (discarded > MAX_DISCARD_SIZE) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
         }
+    }
 
-        return lineBuffer.toString(StandardCharsets.UTF_8);
+    /**
+     * 按名称获取Cookie的值，没有时返回null
+     */
+    public String getCookie(String name) {
+        String cookies = getHeader("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < cookies.length()) {
+            int end = cookies.indexOf(';', start);
+            if (end < 0) {
+                end = cookies.length();
+            }
+            int eq = cookies.indexOf('=', start);
+            if (eq > 0 && eq < end && cookies.substring(start, eq).trim().equals(name)) {
+                return cookies.substring(eq + 1, end).trim();
+            }
+            start = end + 1;
+        }
+        return null;
     }
 
     /**
      * 判断长连接
      */
     public boolean isKeepAlive() {
-        String connection = headers.getOrDefault("Connection", "");
+        String connection = getHeader("Connection");
+        if (connection == null) {
+            connection = "";
+        }
         return "keep-alive".equalsIgnoreCase(connection) ||
-                ("HTTP/1.1".equals(protocol) && !"close".equalsIgnoreCase(connection));
+                (HttpHead.HTTP_1_1.equals(getProtocol()) && !"close".equalsIgnoreCase(connection));
     }
 
     @Override
     public String toString() {
-        return method + " " + path + " " + protocol + "\n" +
-                "headers:" + headers + "\n" +
-                (body == null ? "" : "body:" + (
-                        headers.containsKey("Content-Type") && !headers.get("Content-Type").startsWith("text") ?
-                                "[二进制数据 - " + body.length + "字节]" : new String(body, StandardCharsets.UTF_8)));
+        String bodyText;
+        if (body == null) {
+            bodyText = isChunked() ? "body:[分块传输]" : "";
+        } else {
+            bodyText = "body:" + Log.body(body, getHeader("Content-Type"));
+        }
+        return getMethod() + " " + getPath() + " " + getProtocol() + "\n" +
+                "headers:" + getHeaders() + "\n" + bodyText;
     }
 }
@@ -1,31 +1,80 @@
 package server;
 
+import common.Log;
+import lombok.Getter;
 import lombok.Setter;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 
 public class HttpResponse {
-    private final OutputStream outputStream;
+    //描述成功响应内容的头，错误响应不能带上处理函数在出错前设置的这些头（如长期缓存的Cache-Control）
+    private static final Set<String> ENTITY_HEADERS = Set.of(
+            "Cache-Control", "Expires", "ETag", "Last-Modified", "Accept-Ranges", "Content-Range", "Content-Disposition");
+
+    private final ResponseOutput output;
     @Setter
     private String version;
+    @Getter
     private int statusCode;
     private String statusText;
-    private final Map<String, String> headers;
+    //常用头单独保存，发送时使用预先编码的字节；其余头按设置顺序保存
+    private boolean keepAlive;
+    //连接上还允许的后续请求数，0表示本次响应后关闭连接，-1为不限制且不发送Keep-Alive头
+    @Setter
+    private int remainingRequests = -1;
+    private String contentType;
+    private long contentLength = -1;
+    private final List<String> headerNames = new ArrayList<>();
+    private final List<String> headerValues = new ArrayList<>();
     private byte[] body;
+    //响应体内容不会改变，压缩结果可以缓存
+    private boolean stableBody;
+    //请求的Accept-Encoding，由路由器设置
+    @Setter
+    private String acceptEncoding;
+    //由内存片段(ByteBuffer)和文件区域(FileRegion)组成的响应体，用于零拷贝下载和多区间响应
+    private List<Object> bodyParts;
+    private long bodyPartsLength;
+    private final List<Closeable> resources = new ArrayList<>();
+    //是否记录本次响应，与请求日志的抽样结果一致
+    @Setter
+    private boolean sampled = true;
+    //指标归属的路由，由路由表在调用处理函数前设置
+    @Getter
+    @Setter
+    private ServerMetrics.RouteMetrics routeMetrics;
+    //send() 写出头部和响应体的耗时
+    @Getter
+    private long writeNanos;
+    //处理函数把耗时的工作交给其他线程时，完成后在连接所在的线程上发送响应的步骤
+    @Getter
+    private CompletableFuture<Runnable> deferred;
+
+    private record FileRegion(FileChannel file, long position, long count) {
+    }
 
     public HttpResponse(OutputStream outputStream) {
-        this.outputStream = outputStream;
-        this.headers = new HashMap<>();
+        this(new StreamResponseOutput(outputStream, null));
+    }
 
-        //设置默认
+    HttpResponse(ResponseOutput output) {
+        this.output = output;
+
+        //设置默认，Server头固定，连接默认关闭
         setVersion("HTTP/1.1");
         setStatus(200);
-        setHeader("Server", "HttpServer/1.0");
-        setHeader("Connection", "close");
     }
 
     /**
@@ -33,23 +82,82 @@ public class HttpResponse {
      */
     void setStatus(int statusCode) {
         this.statusCode = statusCode;
-        this.statusText = switch (statusCode) {
+        String reason = reasonPhrase(statusCode);
+        this.statusText = reason != null ? reason : "Unknown Status";
+    }
+
+    /**
+     * 状态码的描述，未知状态码返回null
+     */
+    static String reasonPhrase(int statusCode) {
+        return switch (statusCode) {
             case 200 -> "OK";
+            case 206 -> "Partial Content";
             case 301 -> "Moved Permanently";
             case 302 -> "Found";
             case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
             case 404 -> "Not Found";
             case 405 -> "Method Not Allowed";
+            case 413 -> "Payload Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
             case 500 -> "Internal Server Error";
-            default -> "Unknown Status";
+            case 503 -> "Service Unavailable";
+            default -> null;
         };
     }
 
     /**
-     * 设置响应头
+     * 设置响应头，同名的头会被替换
      */
     void setHeader(String key, String value) {
-        headers.put(key, value);
+        switch (key) {
+            case "Content-Type" -> contentType = value;
+            case "Content-Length" -> contentLength = Long.parseLong(value);
+            case "Connection" -> keepAlive = "keep-alive".equalsIgnoreCase(value);
+            default -> {
+                int index = headerNames.indexOf(key);
+                if (index >= 0) {
+                    headerValues.set(index, value);
+                } else {
+                    headerNames.add(key);
+                    headerValues.add(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 异步操作完成后再发送响应，处理函数随即返回，不阻塞连接所在的线程
+     * <p>
+     * then 由引擎在连接所在的线程上调用：阻塞引擎为连接线程，NIO 引擎为事件循环线程，
+     * 异步操作失败时 value 为null、error 为失败原因
+     */
+    <T> void sendWhenDone(CompletionStage<T> stage, BiConsumer<? super T, Throwable> then) {
+        deferred = stage.toCompletableFuture().handle((value, error) -> () ->
+                then.accept(value, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+    }
+
+    /**
+     * 阻塞引擎使用：等待异步操作完成并发送响应，没有异步操作时直接返回
+     */
+    void awaitDeferred() {
+        if (deferred != null) {
+            deferred.join().run();
+        }
+    }
+
+    /**
+     * 删除已设置的实体头，错误响应发送前调用
+     */
+    private void clearEntityHeaders() {
+        for (int i = headerNames.size() - 1; i >= 0; i--) {
+            if (ENTITY_HEADERS.contains(headerNames.get(i))) {
+                headerNames.remove(i);
+                headerValues.remove(i);
+            }
+        }
     }
 
     /**
@@ -57,14 +165,75 @@ public class HttpResponse {
      */
     void setBody(byte[] body) {
         this.body = body;
-        setHeader("Content-Length", String.valueOf(body.length));
+        this.bodyParts = null;
+        this.contentLength = body.length;
+        this.stableBody = false;
+    }
+
+    /**
+     * 设置内容不会改变的响应体（如常量页面），同一数组的压缩结果只计算一次
+     */
+    void setStableBody(byte[] body) {
+        setBody(body);
+        this.stableBody = true;
+    }
+
+    /**
+     * 以文件的一段作为响应体，发送时由内核直接从文件拷贝到套接字，文件在写出后关闭
+     */
+    void setFileBody(FileChannel file, long position, long count) {
+        this.body = null;
+        this.bodyParts = null;
+        this.bodyPartsLength = 0;
+        addFileBodyPart(file, position, count);
+    }
+
+    /**
+     * 追加一段内存数据到分段响应体
+     */
+    void addBodyPart(byte[] bytes) {
+        addBodyPart(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 追加数组的一段到分段响应体，不复制数据
+     */
+    void addBodyPart(byte[] bytes, int offset, int length) {
+        addPart(ByteBuffer.wrap(bytes, offset, length), length);
+    }
+
+    /**
+     * 追加一个文件区域到分段响应体，同一文件可追加多次，只关闭一次
+     */
+    void addFileBodyPart(FileChannel file, long position, long count) {
+        addResource(file);
+        addPart(new FileRegion(file, position, count), count);
+    }
+
+    private void addPart(Object part, long length) {
+        this.body = null;
+        if (bodyParts == null) {
+            bodyParts = new ArrayList<>();
+        }
+        bodyParts.add(part);
+        bodyPartsLength += length;
+        contentLength = bodyPartsLength;
+    }
+
+    /**
+     * 登记响应占用的资源，无论最终发送哪种响应，都在写出后释放
+     */
+    void addResource(Closeable resource) {
+        if (!resources.contains(resource)) {
+            resources.add(resource);
+        }
     }
 
     /**
      * 设置Content-Type
      */
     void setContentType(String contentType) {
-        setHeader("Content-Type", contentType);
+        this.contentType = contentType;
     }
 
     /**
@@ -80,7 +249,7 @@ public class HttpResponse {
      * 设置长连接
      */
     void setKeepAlive(boolean keepAlive) {
-        setHeader("Connection", keepAlive ? "keep-alive" : "close");
+        this.keepAlive = keepAlive;
     }
 
     /**
@@ -99,32 +268,132 @@ public class HttpResponse {
         }
     }
 
+    /**
+     * 头部和内存中的响应体通过一次聚集写发出，小响应只占一个数据包；
+     * 文件区域之前累积的内存片段先一起写出，文件本身仍走 transferTo
+     */
     void send() {
+        long start = System.nanoTime();
         try {
-            StringBuilder response = new StringBuilder(version + " " + statusCode + " " + statusText + "\r\n");
-            for (Map.Entry<String, String> header : headers.entrySet()) {
-                response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
-            }
-
-            response.append("\r\n");
-
-            outputStream.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            byte[] original = body;
+            applyContentEncoding();
+            ResponseHead head = encodeHead();
+            ByteBuffer headBuffer = head.buffer();
 
             if (body != null) {
-                outputStream.write(body);
+                output.write(headBuffer, ByteBuffer.wrap(body));
+            } else if (bodyParts != null) {
+                List<ByteBuffer> gather = new ArrayList<>();
+                gather.add(headBuffer);
+                for (Object part : bodyParts) {
+                    switch (part) {
+                        case ByteBuffer buffer -> gather.add(buffer.duplicate());
+                        case FileRegion region -> {
+                            if (!gather.isEmpty()) {
+                                output.write(gather.toArray(new ByteBuffer[0]));
+                                gather.clear();
+                            }
+                            output.transferFrom(region.file(), region.position(), region.count());
+                        }
+                        default -> throw new IllegalStateException("未知的响应体片段：" + part);
+                    }
+                }
+                if (!gather.isEmpty()) {
+                    output.write(gather.toArray(new ByteBuffer[0]));
+                }
+            } else {
+                output.write(headBuffer);
             }
 
-            outputStream.flush();
+            output.endResponse();
+            writeNanos = System.nanoTime() - start;
 
-            System.out.println("已发送响应：\n" + response + (body == null ? "" : (
-                    headers.containsKey("Content-Type") && !headers.get("Content-Type").startsWith("text") ?
-                            "[二进制数据 - " + body.length + "字节]" : new String(body, StandardCharsets.UTF_8))));
+            if (sampled) {
+                Log.info("已发送响应：\n{}{}", head, bodySummary(original));
+            }
         } catch (IOException e) {
-            System.out.println("发送响应失败：" + e.getMessage());
+            Log.warn("发送响应失败：{}", e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            releaseResources();
+        }
+    }
+
+    private Object bodySummary(byte[] original) {
+        if (original != null) {
+            return Log.body(original, contentType);
+        }
+        return bodyParts == null ? "" : "[文件数据 - " + bodyPartsLength + "字节]";
+    }
+
+    /**
+     * 按请求的Accept-Encoding压缩内存中的文本响应体。分段响应（文件和多区间）不压缩，
+     * 压缩后没有变小时发送原文；可压缩的类型总是带上 Vary 头
+     */
+    private void applyContentEncoding() {
+        if (body == null || statusCode == 206 || statusCode == 304 || !ContentEncoding.isCompressible(contentType)
+                || headerNames.contains("Content-Encoding")) {
+            return;
+        }
+        setHeader("Vary", "Accept-Encoding");
+        if (body.length < ServerConfig.COMPRESSION_MIN_SIZE) {
+            return;
+        }
+        String encoding = ContentEncoding.negotiate(acceptEncoding);
+        if (encoding == null) {
+            return;
+        }
+        byte[] encoded = ContentEncoding.encode(body, encoding, stableBody);
+        if (encoded.length >= body.length) {
+            return;
+        }
+        body = encoded;
+        contentLength = encoded.length;
+        setHeader("Content-Encoding", encoding);
+        int eTag = headerNames.indexOf("ETag");
+        if (eTag >= 0) {
+            headerValues.set(eTag, EntityTag.withEncoding(headerValues.get(eTag), encoding));
         }
     }
 
+    private ResponseHead encodeHead() {
+        if (remainingRequests == 0) {
+            keepAlive = false;
+        }
+        ResponseHead head = new ResponseHead()
+                .statusLine(version, statusCode, statusText)
+                .date()
+                .line(ResponseHead.SERVER)
+                .line(keepAlive ? ResponseHead.CONNECTION_KEEP_ALIVE : ResponseHead.CONNECTION_CLOSE);
+        if (keepAlive && remainingRequests > 0) {
+            head.header(ResponseHead.KEEP_ALIVE_MAX, remainingRequests);
+        }
+        if (contentType != null) {
+            head.header(ResponseHead.CONTENT_TYPE, contentType);
+        }
+        if (contentLength >= 0) {
+            head.header(ResponseHead.CONTENT_LENGTH, contentLength);
+        }
+        for (int i = 0; i < headerNames.size(); i++) {
+            head.header(headerNames.get(i), headerValues.get(i));
+        }
+        return head.end();
+    }
+
+    /**
+     * 释放响应引用的文件，未发送的响应也必须调用
+     */
+    void releaseResources() {
+        for (Closeable resource : resources) {
+            try {
+                output.release(resource);
+            } catch (IOException e) {
+                Log.warn("释放资源失败：{}", e.getMessage());
+            }
+        }
+        resources.clear();
+    }
+
     void sendOK(String content) {
         setStatus(200);
         setContentType("text/html; charset=utf-8");
@@ -146,8 +415,26 @@ public class HttpResponse {
         send();
     }
 
+    void sendRangeNotSatisfiable(long size) {
+        setStatus(416);
+        clearEntityHeaders();
+        setHeader("Content-Range", "bytes */" + size);
+        setContentType("text/html; charset=utf-8");
+        setBody(("<html><body><h1>416 Range Not Satisfiable</h1><p>None of the requested ranges overlap the resource.</p></body></html>").getBytes());
+        send();
+    }
+
+    void sendBadRequest(String reason) {
+        setStatus(400);
+        clearEntityHeaders();
+        setContentType("text/html; charset=utf-8");
+        setBody(("<html><body><h1>400 Bad Request</h1><p>" + reason + "</p></body></html>").getBytes(StandardCharsets.UTF_8));
+        send();
+    }
+
     void sendNotFound() {
         setStatus(404);
+        clearEntityHeaders();
         setContentType("text/html; charset=utf-8");
         setBody(("<html><body><h1>404 Not Found</h1><p>The requested resource was not found on this server.</p></body></html>").getBytes());
         send();
@@ -155,13 +442,64 @@ public class HttpResponse {
 
     void sendMethodNotAllowed() {
         setStatus(405);
+        clearEntityHeaders();
         setContentType("text/html; charset=utf-8");
         setBody(("<html><body><h1>405 Method Not Allowed</h1><p>The request method is not supported for the requested resource.</p></body></html>").getBytes());
         send();
     }
 
+    /**
+     * 发送100 Continue临时响应，客户端收到后才开始发送请求体
+     */
+    void sendContinue() {
+        try {
+            byte[] interim = "HTTP/1.1".equals(version) ? ResponseHead.CONTINUE :
+                    (version + " 100 Continue\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            output.write(interim, 0, interim.length);
+            output.flush();
+        } catch (IOException e) {
+            Log.warn("发送响应失败：{}", e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 请求体过大，未读完的请求体无法跳过，因此同时关闭连接
+     */
+    void sendPayloadTooLarge() {
+        setStatus(413);
+        clearEntityHeaders();
+        setKeepAlive(false);
+        setContentType("text/html; charset=utf-8");
+        setBody(("<html><body><h1>413 Payload Too Large</h1><p>The request body exceeds the maximum allowed size.</p></body></html>").getBytes());
+        send();
+    }
+
+    void sendTooManyRequests(long retryAfterSeconds) {
+        setStatus(429);
+        clearEntityHeaders();
+        setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        setContentType("text/html; charset=utf-8");
+        setBody(("<html><body><h1>429 Too Many Requests</h1><p>Request rate limit exceeded.</p></body></html>").getBytes());
+        send();
+    }
+
+    /**
+     * 过载时拒绝请求并关闭连接，释放连接占用的资源
+     */
+    void sendServiceUnavailable(long retryAfterSeconds) {
+        setStatus(503);
+        clearEntityHeaders();
+        setKeepAlive(false);
+        setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        setContentType("text/html; charset=utf-8");
+        setBody(("<html><body><h1>503 Service Unavailable</h1><p>The server is overloaded, please retry later.</p></body></html>").getBytes());
+        send();
+    }
+
     void sendInternalServerError() {
         setStatus(500);
+        clearEntityHeaders();
         setContentType("text/html; charset=utf-8");
         setBody(("<html><body><h1>500 Internal Server Error</h1><p>Something went wrong on the server.</p></body></html>").getBytes());
         send();
@@ -1,77 +1,137 @@
 package server;
 
+import common.BodyTooLargeException;
+import common.HttpDate;
+import common.Log;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * 路由器会被多个连接线程同时调用，所有共享状态都必须是线程安全的
+ */
 public class HttpRouter {
-    private static final Map<String, String> users = new HashMap<>();
+    //存储中还没有图片时 GET /image 返回的旧版单文件图片
+    private static final Path IMAGE_PATH = Paths.get("images/image.png");
+    private static final String SESSION_COOKIE = "SID";
+    //主页内容不变，压缩结果只计算一次
+    private static final byte[] INDEX_HTML = ("<html><body>" +
+            "<h1>HTTP Server 首页</h1>" +
+            "<p>可用接口：</p>" +
+            "<ul>" +
+            "<li>POST /register username=123&password=456 - 用户注册</li>" +
+            "<li>POST /login username=123&password=456 - 用户登录，成功后通过Cookie下发会话</li>" +
+            "<li>POST /logout - 注销会话</li>" +
+            "<li>GET /image - 获取最近上传的图片</li>" +
+            "<li>GET /image/{id} - 按ID获取图片</li>" +
+            "<li>POST /image path - 上传图片，返回图片ID</li>" +
+            "<li>GET /metrics - 服务器指标（Prometheus格式）</li>" +
+            "</ul>" +
+            "</body></html>").getBytes(StandardCharsets.UTF_8);
+    private final AssetCache assetCache = new AssetCache(ServerConfig.ASSET_CACHE_BYTES,
+            ServerConfig.ASSET_CACHE_MAX_ENTRY_BYTES, ServerConfig.ASSET_CACHE_CHECK_INTERVAL);
 
     static {
         if (new File("images/").mkdirs()) {
-            System.out.println("创建静态文件目录成功");
+            Log.info("创建静态文件目录成功");
         }
     }
 
-    public void route(HttpRequest request, HttpResponse response) {
-        String method = request.getMethod();
-        String path = request.getPath();
+    private final RouteTable routes = new RouteTable();
+    private final UserStore users;
+    private final ImageStore images;
+    private final SessionStore sessions = new SessionStore(ServerConfig.SESSION_TTL_SECONDS, ServerConfig.MAX_SESSIONS);
+
+    public HttpRouter() {
+        try {
+            users = FileUserStore.open(Paths.get(ServerConfig.USER_STORE_DIR), ServerConfig.USER_LOG_COMPACT_BYTES,
+                    ServerConfig.USER_SNAPSHOT_INTERVAL, ServerConfig.USER_LOG_FSYNC);
+        } catch (IOException e) {
+            Log.error("打开用户存储失败：{}", e.getMessage());
+            throw new RuntimeException(e);
+        }
+        try {
+            images = ImageStore.open(Paths.get(ServerConfig.IMAGE_STORE_DIR));
+        } catch (IOException e) {
+            Log.error("打开图片存储失败：{}", e.getMessage());
+            throw new RuntimeException(e);
+        }
+        routes.get("/", this::handleIndex);
+        routes.get("/index.html", this::handleIndex);
+        routes.post("/register", this::handleRegister);
+        routes.post("/login", this::handleLogin);
+        routes.post("/logout", this::handleLogout);
+        routes.get("/image", this::handleDownload);
+        routes.get("/image/{id}", this::handleImage);
+        routes.post("/image", this::handleUpload);
+        routes.get("/metrics", this::handleMetrics);
+    }
 
-        //设置长连接
+    public void route(HttpRequest request, HttpResponse response) {
+        //设置长连接和可接受的压缩编码
         response.setKeepAlive(request.isKeepAlive());
+        response.setAcceptEncoding(request.getHeader("Accept-Encoding"));
 
         //路由分发
-        switch (path) {
-            case "/", "/index.html" -> handleIndex(response);
-            case "/register" -> {
-                if ("POST".equalsIgnoreCase(method)) {
-                    handleRegister(request, response);
-                } else {
-                    response.sendMethodNotAllowed();
-                }
-            }
-            case "/login" -> {
-                if ("POST".equalsIgnoreCase(method)) {
-                    handleLogin(request, response);
-                } else {
-                    response.sendMethodNotAllowed();
-                }
-            }
-            case ("/image") -> {
-                if ("GET".equalsIgnoreCase(method)) {
-                    handleDownload(request, response);
-                } else if ("POST".equalsIgnoreCase(method)) {
-                    handleUpload(request, response);
-                } else {
-                    response.sendMethodNotAllowed();
-                }
-            }
-            case null, default -> response.sendNotFound();
-        }
+        routes.dispatch(request, response);
     }
 
     /**
      * 处理主页
      */
-    private void handleIndex(HttpResponse response) {
-        String html = "<html><body>" +
-                "<h1>HTTP Server 首页</h1>" +
-                "<p>可用接口：</p>" +
-                "<ul>" +
-                "<li>POST /register username=123&password=456 - 用户注册</li>" +
-                "<li>POST /login username=123&password=456 - 用户登录</li>" +
-                "<li>GET /image - 获取图片</li>" +
-                "<li>POST /image path - 上传图片</li>" +
-                "</ul>" +
-                "</body></html>";
-        response.sendOK(html);
+    private void handleIndex(HttpRequest request, HttpResponse response) {
+        response.setStatus(200);
+        response.setContentType("text/html; charset=utf-8");
+        response.setStableBody(INDEX_HTML);
+        response.send();
     }
 
     /**
-     * 处理注册
+     * 以Prometheus文本格式导出服务器指标和静态文件缓存的统计
+     */
+    private void handleMetrics(HttpRequest request, HttpResponse response) {
+        StringBuilder text = new StringBuilder(8192);
+        ServerMetrics.writeTo(text);
+        ServerMetrics.counter(text, "asset_cache_hits_total", "静态文件缓存命中次数", assetCache.hits());
+        ServerMetrics.counter(text, "asset_cache_misses_total", "静态文件缓存未命中次数", assetCache.misses());
+        ServerMetrics.counter(text, "asset_cache_evictions_total", "静态文件缓存淘汰次数", assetCache.evictions());
+        ServerMetrics.gauge(text, "asset_cache_bytes", "静态文件缓存占用的字节数", assetCache.size());
+        ServerMetrics.counter(text, "compression_input_bytes_total", "压缩前的字节数", ContentEncoding.BYTES_IN.sum());
+        ServerMetrics.counter(text, "compression_output_bytes_total", "压缩后的字节数", ContentEncoding.BYTES_OUT.sum());
+        ServerMetrics.counter(text, "compression_cache_hits_total", "使用缓存压缩结果的次数",
+                ContentEncoding.CACHE_HITS.sum());
+        ServerMetrics.gauge(text, "image_store_images", "存储的图片数", images.size());
+        ServerMetrics.gauge(text, "image_store_bytes", "存储的图片总字节数", images.bytes());
+        ServerMetrics.counter(text, "image_store_deduplicated_total", "内容已存在而未重复保存的上传数",
+                images.deduplicated());
+        ServerMetrics.gauge(text, "sessions_active", "当前会话数", sessions.size());
+        ServerMetrics.counter(text, "sessions_created_total", "创建的会话数", sessions.created());
+        ServerMetrics.counter(text, "sessions_expired_total", "过期清理的会话数", sessions.expired());
+        ServerMetrics.counter(text, "sessions_evicted_total", "会话数达到上限时淘汰的会话数", sessions.evicted());
+        UserStore.Stats userStats = users.stats();
+        ServerMetrics.gauge(text, "user_store_users", "已注册的用户数", userStats.users());
+        ServerMetrics.gauge(text, "user_store_log_bytes", "用户日志的字节数", userStats.logBytes());
+        ServerMetrics.counter(text, "user_store_commits_total", "用户日志组提交次数", userStats.commits());
+        ServerMetrics.counter(text, "user_store_committed_records_total", "用户日志提交的记录数",
+                userStats.committedRecords());
+
+        response.setStatus(200);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setBody(text.toString().getBytes(StandardCharsets.UTF_8));
+        response.send();
+    }
+
+    /**
+     * 处理注册，密码哈希和落盘完成后才发送响应
      */
     private void handleRegister(HttpRequest request, HttpResponse response) {
         try {
@@ -80,144 +140,305 @@ public class HttpRouter {
                 return;
             }
 
-            String body = new String(request.getBody(), StandardCharsets.UTF_8);
-            Map<String, String> params = parseFormData(body);
-
-            String username = params.get("username");
-            String password = params.get("password");
+            FormData form = FormData.parse(request.getBody(), ServerConfig.MAX_FORM_PARAMS);
+            String username = form.get("username");
+            String password = form.get("password");
 
             if (username == null || password == null) {
                 response.sendOK("{\"success\": false, \"message\": \"用户名和密码不能为空\"}");
                 return;
             }
 
-            synchronized (users) {
-                if (users.containsKey(username)) {
+            response.sendWhenDone(users.register(username, password), (registered, error) -> {
+                if (error != null) {
+                    Log.warn("注册处理错误: {}", error.getMessage());
+                    response.sendInternalServerError();
+                } else if (!registered) {
                     response.sendOK("{\"success\": false, \"message\": \"用户名已存在\"}");
                 } else {
-                    users.put(username, password);
                     response.sendOK("{\"success\": true, \"message\": \"注册成功\"}");
-                    System.out.println("用户注册：" + username);
+                    Log.info("用户注册：{}", username);
                 }
-            }
+            });
+        } catch (BodyTooLargeException e) {
+            response.sendPayloadTooLarge();
+        } catch (IllegalArgumentException e) {
+            response.sendBadRequest(e.getMessage());
         } catch (Exception e) {
-            System.out.println("注册处理错误: " + e.getMessage());
+            Log.warn("注册处理错误: {}", e.getMessage());
             response.sendInternalServerError();
         }
     }
 
     /**
-     * 处理登录
+     * 处理登录，密码校验完成后才发送响应
      */
     private void handleLogin(HttpRequest request, HttpResponse response) {
         try {
+            //持有有效会话且没有提交表单时，不再校验账号密码
+            String sessionUser = sessionUser(request);
+            if (sessionUser != null && !request.hasBody()) {
+                response.sendOK("{\"success\": true, \"message\": \"登录成功\"}");
+                return;
+            }
             if (request.getBody() == null) {
                 response.sendOK("{\"success\": false, \"message\": \"用户名和密码不能为空\"}");
                 return;
             }
 
-            String body = new String(request.getBody(), StandardCharsets.UTF_8);
-            Map<String, String> params = parseFormData(body);
-
-            String username = params.get("username");
-            String password = params.get("password");
+            FormData form = FormData.parse(request.getBody(), ServerConfig.MAX_FORM_PARAMS);
+            String username = form.get("username");
+            String password = form.get("password");
 
             if (username == null || password == null) {
                 response.sendOK("{\"success\": false, \"message\": \"用户名和密码不能为空\"}");
                 return;
             }
 
-            synchronized (users) {
-                String storedPassword = users.get(username);
-                if (storedPassword != null && storedPassword.equals(password)) {
+            response.sendWhenDone(users.authenticate(username, password), (authenticated, error) -> {
+                if (error != null) {
+                    Log.warn("登录处理错误: {}", error.getMessage());
+                    response.sendInternalServerError();
+                } else if (authenticated) {
+                    //不设Max-Age，过期完全由服务器按滑动时间判断
+                    response.setHeader("Set-Cookie", SESSION_COOKIE + "=" + sessions.create(username) +
+                            "; Path=/; HttpOnly; SameSite=Lax");
                     response.sendOK("{\"success\": true, \"message\": \"登录成功\"}");
-                    System.out.println("用户登录：" + username);
+                    Log.info("用户登录：{}", username);
                 } else {
                     response.sendOK("{\"success\": false, \"message\": \"用户名或密码错误\"}");
                 }
-            }
+            });
+        } catch (BodyTooLargeException e) {
+            response.sendPayloadTooLarge();
+        } catch (IllegalArgumentException e) {
+            response.sendBadRequest(e.getMessage());
         } catch (Exception e) {
-            System.out.println("登录处理错误: " + e.getMessage());
+            Log.warn("登录处理错误: {}", e.getMessage());
             response.sendInternalServerError();
         }
     }
 
     /**
-     * 解析表单数据
+     * 注销当前会话，并让客户端删除Cookie
      */
-    private static Map<String, String> parseFormData(String formData) {
-        Map<String, String> params = new HashMap<>();
-        if (formData != null && !formData.isEmpty()) {
-            String[] pairs = formData.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length == 2) {
-                    params.put(keyValue[0], keyValue[1]);
-                }
-            }
-        }
-        return params;
+    private void handleLogout(HttpRequest request, HttpResponse response) {
+        boolean removed = sessions.invalidate(request.getCookie(SESSION_COOKIE));
+        response.setHeader("Set-Cookie", SESSION_COOKIE + "=; Path=/; Max-Age=0; HttpOnly; SameSite=Lax");
+        response.sendOK(removed ? "{\"success\": true, \"message\": \"已注销\"}" :
+                "{\"success\": false, \"message\": \"未登录\"}");
     }
 
     /**
-     * 处理下载图像
+     * 请求所带会话对应的用户名，没有有效会话时返回null；任何路由都可以用来识别已登录用户
+     */
+    private String sessionUser(HttpRequest request) {
+        return sessions.validate(request.getCookie(SESSION_COOKIE));
+    }
+
+    /**
+     * 处理下载最近上传的图像，存储中还没有图片时返回旧版的单文件图片
      */
     private void handleDownload(HttpRequest request, HttpResponse response) {
-        try {
-            File imageFile = new File("images/image.png");
+        ImageStore.Image latest = images.latest();
+        if (latest == null) {
+            sendAsset(request, response, IMAGE_PATH, null, "image/png");
+        } else {
+            sendAsset(request, response, images.pathOf(latest.id()), latest.eTag(), latest.contentType());
+        }
+    }
 
-            if (!imageFile.exists()) {
+    /**
+     * 按ID下载图像，内容不会改变，允许客户端长期缓存
+     */
+    private void handleImage(HttpRequest request, HttpResponse response) {
+        try {
+            ImageStore.Image image = images.get(request.getPathParam("id"));
+            if (image == null) {
                 response.sendNotFound();
                 return;
             }
+            response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+            if (!sendAsset(request, response, images.pathOf(image.id()), image.eTag(), image.contentType())) {
+                images.remove(image.id());
+            }
+        } catch (IOException e) {
+            Log.warn("下载处理错误: {}", e.getMessage());
+            response.sendInternalServerError();
+        }
+    }
+
+    /**
+     * 设置验证器头，条件请求命中时发送304并返回true
+     */
+    private static boolean sendIfNotModified(HttpRequest request, HttpResponse response, AssetCache.Asset asset) {
+        response.setHeader("Last-Modified", asset.lastModifiedHeader);
+        response.setHeader("ETag", asset.eTag);
+        if (isNotModified(request, asset)) {
+            response.sendNotModified();
+            return true;
+        }
+        return false;
+    }
 
-            if (request.getHeaders().containsKey("If-Modified-Since")) {
-                if (imageFile.lastModified() <= Long.parseLong(request.getHeaders().get("If-Modified-Since"))) {
-                    response.sendNotModified();
-                    return;
+    /**
+     * 发送图像文件
+     * <p>
+     * 元数据（含内容哈希ETag）和小文件内容来自内存缓存，条件请求不访问文件系统；
+     * 超过缓存单项上限的文件不读入Java堆，由 FileChannel.transferTo 直接发送到套接字。
+     * 两者都支持Range断点续传和多区间下载
+     *
+     * @param knownETag 按内容寻址的文件直接使用ID作为ETag，其他文件传null
+     * @param contentType 上传时记录的图片类型
+     * @return 文件不存在（已返回404）时为false
+     */
+    private boolean sendAsset(HttpRequest request, HttpResponse response, Path path, String knownETag,
+                              String contentType) {
+        FileChannel file = null;
+        try {
+            AssetCache.Asset asset = assetCache.get(path, knownETag);
+            //条件请求只用缓存的元数据判断，返回304时不打开文件
+            if (sendIfNotModified(request, response, asset)) {
+                return true;
+            }
+            if (asset.body == null) {
+                //上传通过原子重命名替换文件，打开后读到的总是同一个完整版本；
+                //检查间隔内文件可能已在服务器之外被替换，长度不符时重新加载元数据
+                file = FileChannel.open(path, StandardOpenOption.READ);
+                if (file.size() != asset.size) {
+                    file.close();
+                    file = null;
+                    assetCache.invalidate(path);
+                    asset = assetCache.get(path, knownETag);
+                    if (sendIfNotModified(request, response, asset)) {
+                        return true;
+                    }
+                    file = FileChannel.open(path, StandardOpenOption.READ);
                 }
+                response.addResource(file);
             }
 
-            byte[] imageData = Files.readAllBytes(imageFile.toPath());
+            AssetCache.Asset body = asset;
+            FileChannel imageFile = file;
+            sendRanges(request, response, asset.size, ifRangeMatches(request, asset), contentType,
+                    body.body != null
+                            ? (position, count) -> response.addBodyPart(body.body, (int) position, (int) count)
+                            : (position, count) -> response.addFileBodyPart(imageFile, position, count));
+        } catch (NoSuchFileException e) {
+            closeQuietly(file);
+            assetCache.invalidate(path);
+            response.sendNotFound();
+            return false;
+        } catch (IOException e) {
+            Log.warn("下载处理错误: {}", e.getMessage());
+            closeQuietly(file);
+            response.sendInternalServerError();
+        }
+        return true;
+    }
 
-            long lastModified = imageFile.lastModified();
-            response.setHeader("Last-Modified", String.valueOf(lastModified));
+    /**
+     * 条件请求判断：有If-None-Match时只比较ETag，否则按秒比较If-Modified-Since
+     */
+    private static boolean isNotModified(HttpRequest request, AssetCache.Asset asset) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return EntityTag.matches(ifNoneMatch, asset.eTag);
+        }
+        long ifModifiedSince = HttpDate.parse(request.getHeader("If-Modified-Since"));
+        return ifModifiedSince >= 0 && asset.lastModified / 1000 <= ifModifiedSince / 1000;
+    }
 
-            response.setMimeType("png");
-            response.setBody(imageData);
+    /**
+     * If-Range为ETag时要求强匹配，为日期时要求与Last-Modified完全一致，没有If-Range时总是满足
+     */
+    private static boolean ifRangeMatches(HttpRequest request, AssetCache.Asset asset) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(asset.eTag);
+        }
+        return ifRange.equals(asset.lastModifiedHeader);
+    }
+
+    /**
+     * 把资源的一段追加到响应体
+     */
+    private interface BodyRangeWriter {
+        void write(long position, long count);
+    }
+
+    /**
+     * 按Range头发送完整内容、单区间206或multipart/byteranges多区间206
+     *
+     * @param rangeAllowed If-Range校验结果，不满足时忽略Range返回完整内容
+     */
+    private void sendRanges(HttpRequest request, HttpResponse response, long size, boolean rangeAllowed,
+                            String contentType, BodyRangeWriter writer) {
+        response.setHeader("Accept-Ranges", "bytes");
+
+        List<ByteRange> ranges = null;
+        if (rangeAllowed) {
+            ranges = ByteRange.parse(request.getHeader("Range"), size);
+        }
 
-            response.send();
+        if (ranges == null) {
+            response.setContentType(contentType);
+            writer.write(0, size);
+        } else if (ranges.isEmpty()) {
+            response.sendRangeNotSatisfiable(size);
+            return;
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.getFirst();
+            response.setStatus(206);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.contentRange(size));
+            writer.write(range.first(), range.length());
+        } else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            response.setStatus(206);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            for (ByteRange range : ranges) {
+                response.addBodyPart(("\r\n--" + boundary + "\r\nContent-Type: " + contentType +
+                        "\r\nContent-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                writer.write(range.first(), range.length());
+            }
+            response.addBodyPart(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        response.send();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
         } catch (IOException e) {
-            System.out.println("下载处理错误: " + e.getMessage());
-            response.sendInternalServerError();
+            Log.warn("关闭资源失败：{}", e.getMessage());
         }
     }
 
     /**
      * 处理上传图像
+     * <p>
+     * 请求体直接从连接流式写入临时文件并计算内容哈希，堆内存占用与上传大小无关；
+     * 图片以哈希为ID保存，相同内容的多次上传只保存一份，响应中返回图片ID
      */
     private void handleUpload(HttpRequest request, HttpResponse response) {
         try {
-            byte[] imageData = request.getBody();
-
-            if (imageData == null) {
+            ImageStore.Image image = request.hasBody() ? images.put(request.getBodyStream(), request.getHeader("Content-Type")) : null;
+            if (image == null) {
                 response.sendOK("{\"success\": false, \"message\": \"上传失败，请检查文件路径\"}");
                 return;
             }
-
-            File imageFile = new File("images/image.png");
-
-            File parentDir = imageFile.getParentFile();
-            if (parentDir != null && !parentDir.exists()) {
-                if (parentDir.mkdirs()) {
-                    System.out.println("创建目录成功：" + parentDir.getAbsolutePath());
-                }
-            }
-            Files.write(imageFile.toPath(), imageData);
-
-            response.sendOK("{\"success\": true, \"message\": \"上传成功\"}");
+            response.sendOK("{\"success\": true, \"message\": \"上传成功\", \"id\": \"" + image.id() + "\"}");
+        } catch (BodyTooLargeException e) {
+            response.sendPayloadTooLarge();
         } catch (IOException e) {
-            System.out.println("上传处理错误: " + e.getMessage());
+            Log.warn("上传处理错误: {}", e.getMessage());
             response.sendInternalServerError();
         }
     }
@@ -1,62 +1,213 @@
 package server;
 
+import common.HttpInput;
+import common.Log;
+
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class HttpServer {
-    private static final int port = 8080;
-    private static final int SO_TIMEOUT = 60000;
+    private static final int port = ServerConfig.PORT;
     private static final HttpRouter httpRouter = new HttpRouter();
+    private static final Semaphore connectionPermits = new Semaphore(ServerConfig.MAX_CONNECTIONS);
+    private static final AdmissionControl admission = new AdmissionControl(ServerConfig.MAX_CONCURRENT_REQUESTS,
+            ServerConfig.SHED_TARGET_MILLIS, ServerConfig.SHED_INTERVAL_MILLIS);
+    private static final RateLimiter rateLimiter = new RateLimiter(ServerConfig.RATE_LIMIT_PER_SECOND,
+            ServerConfig.RATE_LIMIT_BURST, ServerConfig.RATE_LIMIT_MAX_CLIENTS);
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("服务器在端口" + port + "启动……");
-            serverSocket.setReuseAddress(true);
+        if ("nio".equalsIgnoreCase(ServerConfig.ENGINE)) {
+            try {
+                new NioHttpServer(port, httpRouter, ServerConfig.EVENT_LOOPS, rateLimiter).start();
+            } catch (IOException e) {
+                Log.error("服务器启动时发生错误：{}", e.getMessage());
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        //所有连接共用一个时间轮，分段减少各连接线程登记和注销时的锁竞争
+        ConnectionTimeouts timeouts = new ConnectionTimeouts(64, ServerConfig.TIMEOUT_TICK_MILLIS)
+                .start("connection-timeouts");
+        //通过通道accept，阻塞模式下依然使用流读写，同时可用 FileChannel.transferTo 零拷贝发送文件
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             ExecutorService executor = newExecutor()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            Log.info("服务器在端口{}启动……", port);
 
             while (true) {
-                System.out.println("等待客户端连接……");
-                Socket clientSocket = serverSocket.accept();
-                clientSocket.setSoTimeout(SO_TIMEOUT);
-                System.out.println("接收到来自" + clientSocket.getInetAddress() + "的连接");
-                handleRequest(clientSocket);
+                //先获取许可再accept，连接数达到上限时新连接留在backlog中，backlog满后由内核拒绝
+                connectionPermits.acquire();
+                Socket clientSocket;
+                long acceptNanos;
+                try {
+                    Log.debug("等待客户端连接……");
+                    clientSocket = serverChannel.accept().socket();
+                    acceptNanos = System.nanoTime();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    Log.warn("接受连接时发生错误：{}", e.getMessage());
+                    continue;
+                }
+                Log.debug("接收到来自{}的连接", clientSocket.getInetAddress());
+                executor.execute(() -> {
+                    try {
+                        handleRequest(clientSocket, acceptNanos, timeouts);
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
             }
 
         } catch (IOException e) {
-            System.out.println("服务器启动时发生错误：" + e.getMessage());
+            Log.error("服务器启动时发生错误：{}", e.getMessage());
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Log.warn("服务器被中断");
+            Thread.currentThread().interrupt();
         }
     }
 
-    private static void handleRequest(Socket clientSocket) {
+    /**
+     * 创建连接执行器：默认每个连接一个虚拟线程，可回退到固定大小的平台线程池
+     */
+    private static ExecutorService newExecutor() {
+        if ("platform".equalsIgnoreCase(ServerConfig.EXECUTOR)) {
+            Log.info("使用平台线程池，线程数：{}", ServerConfig.POOL_SIZE);
+            return Executors.newFixedThreadPool(ServerConfig.POOL_SIZE);
+        }
+        Log.info("使用虚拟线程处理连接");
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * 到期时由超时线程关闭套接字，阻塞在读写上的连接线程随之收到异常退出
+     *
+     * @param acceptNanos 连接被accept的时刻，线程池排队的时间计入第一个请求的排队时延
+     */
+    private static void handleRequest(Socket clientSocket, long acceptNanos, ConnectionTimeouts timeouts) {
+        ServerMetrics.connectionOpened();
+        InetAddress clientAddress = clientSocket.getInetAddress();
+        ConnectionTimeouts.Timer timer = timeouts.register(() -> {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+        });
+        boolean first = true;
+        boolean active = false;
+        int served = 0;
         try (clientSocket;
-             InputStream in = clientSocket.getInputStream();
+             HttpInput in = new HttpInput(timer.track(ServerMetrics.countReceived(clientSocket.getInputStream())));
              OutputStream out = clientSocket.getOutputStream()) {
 
+            //连接上的所有响应共用一个输出，流水线请求的响应合并写出
+            StreamResponseOutput output = new StreamResponseOutput(out, clientSocket.getChannel(), true, timer);
             boolean keepAlive = true;
 
             while (keepAlive) {
                 HttpRequest request = new HttpRequest(in);
-                if (request.getMethod() == null || request.getPath() == null) {
-                    System.out.println("客户端已关闭");
+                if (request.getMethod() == null) {
+                    Log.debug("客户端已关闭");
+                    break;
+                }
+                if (request.getPath() == null) {
+                    HttpResponse response = new HttpResponse(output);
+                    response.setKeepAlive(false);
+                    response.sendBadRequest("Missing request target");
+                    output.flush();
                     break;
                 }
-                System.out.println("\n接收到请求：\n" + request + "\n");
-                keepAlive = request.isKeepAlive();
+                timer.enter(ConnectionTimeouts.Phase.BODY);
+                //之后的请求从请求头读完开始排队
+                long arrivalNanos = first ? acceptNanos : System.nanoTime();
+                first = false;
+                ServerMetrics.connectionActive();
+                active = true;
+                boolean sampled = Log.sampled(request.getPath());
+                if (sampled) {
+                    Log.info("接收到请求：\n{}", request);
+                }
+                served++;
+                keepAlive = request.isKeepAlive() && served < ServerConfig.KEEP_ALIVE_MAX_REQUESTS;
+                if (request.isKeepAlive() && !keepAlive) {
+                    ServerMetrics.KEEP_ALIVE_EXHAUSTED.increment();
+                }
 
-                HttpResponse response = new HttpResponse(out);
+                HttpResponse response = new HttpResponse(output);
+                response.setSampled(sampled);
+                response.setRemainingRequests(ServerConfig.KEEP_ALIVE_MAX_REQUESTS - served);
+                //路由之前发出的响应（如429）同样按请求保持连接，需要关闭连接的响应（413、503）自行改为close
+                response.setKeepAlive(request.isKeepAlive());
 
-                try {
-                    httpRouter.route(request, response);
-                } catch (Exception e) {
-                    System.out.println("路由处理错误: " + e.getMessage());
-                    response.sendInternalServerError();
+                if (request.exceedsMaxBodySize()) {
+                    response.sendPayloadTooLarge();
+                    output.flush();
+                    ServerMetrics.record(request, response, response.getWriteNanos());
+                    break;
+                }
+
+                long routeStart = System.nanoTime();
+                long retryNanos = rateLimiter.acquire(clientAddress);
+                if (retryNanos > 0) {
+                    response.sendTooManyRequests(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryNanos + 999_999_999)));
+                } else if (!admission.admit(arrivalNanos)) {
+                    response.sendServiceUnavailable(ServerConfig.RETRY_AFTER_SECONDS);
+                    keepAlive = false;
+                } else {
+                    //拒绝的请求不发送100 Continue，客户端不必上传请求体
+                    try {
+                        if (request.expectsContinue()) {
+                            response.sendContinue();
+                        }
+                        httpRouter.route(request, response);
+                        //阻塞引擎的连接线程本来就在读写上阻塞，直接等待交给其他线程的工作（如密码哈希）完成
+                        response.awaitDeferred();
+                    } catch (Exception e) {
+                        //超时关闭的连接上无法再写出错误响应
+                        if (timer.isExpired()) {
+                            break;
+                        }
+                        Log.error("路由处理错误: {}", e.getMessage());
+                        response.sendInternalServerError();
+                    } finally {
+                        admission.release();
+                    }
                 }
+                ServerMetrics.record(request, response, System.nanoTime() - routeStart);
+
+                //处理器没有读完的请求体必须丢弃，否则无法定位下一个请求
+                boolean next = keepAlive && request.discardBody();
+                //下一个流水线请求已经到达时暂不写出，与它的响应合并
+                if (!next || in.buffered() == 0) {
+                    output.flush();
+                }
+                if (!next) {
+                    break;
+                }
+                ServerMetrics.connectionIdle();
+                active = false;
+                timer.requestDone(in.buffered() > 0);
             }
 
-        } catch (SocketTimeoutException e) {
-            System.out.println("客户端连接超时");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            System.out.println("处理客户端连接时发生错误：" + e.getMessage());
+            if (!timer.isExpired()) {
+                Log.warn("处理客户端连接时发生错误：{}", e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            //路由之外的处理错误只关闭这个连接，不让异常在连接线程中无日志地抛出
+            Log.error("处理客户端连接时发生意外错误：{}", e);
+        } finally {
+            timer.cancel();
+            ServerMetrics.connectionClosed(active);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,593 @@
+package server;
+
+import common.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 按内容寻址的图片存储
+ * <p>
+ * 上传边写临时文件边计算 SHA-256，十六进制哈希即图片ID，文件保存在
+ * objects/前两位/接下来两位/完整哈希，每个目录下的文件数保持在很小的范围；相同内容只保存一份。
+ * 文件一旦写入就不再改变，ID可直接作为强ETag
+ * <p>
+ * 内存索引按哈希分段，每段是以原始类型数组实现的开放寻址表，每张图片只占几十字节。
+ * 新图片的元数据追加到索引日志（记录为 哈希 + 大小 + 修改时间 + 类型 + CRC32），启动时以内存映射读取日志重建索引，
+ * 不需要遍历目录；日志不存在时才扫描一遍目录并重新生成。重复内容的上传也追加一条相同的记录，
+ * 日志中最后一条记录即最近一次上传的图片，重启后 GET /image 返回的图片不变
+ * <p>
+ * 图片类型按文件头的魔数识别，识别不出时采用上传声明的 Content-Type（仅限白名单中的图片类型），
+ * 否则为 application/octet-stream；不接受声明的其他类型，避免以 text/html 等类型返回用户上传的内容
+ */
+class ImageStore {
+    private static final String OBJECTS_DIR = "objects";
+    private static final String TEMP_DIR = "tmp";
+    private static final String INDEX_FILE = "index.log";
+    //索引日志文件头：IMG2，旧版IMG1的记录没有类型字段，加载后按新格式重写
+    private static final int INDEX_MAGIC = 0x494D4732;
+    private static final int LEGACY_INDEX_MAGIC = 0x494D4731;
+    private static final int HASH_LENGTH = 32;
+    private static final int RECORD_SIZE = HASH_LENGTH + 8 + 8 + 1 + 4;
+    private static final int LEGACY_RECORD_SIZE = HASH_LENGTH + 8 + 8 + 4;
+    //索引中以下标记录类型，只能在末尾追加
+    private static final String[] CONTENT_TYPES = {
+            "application/octet-stream", "image/png", "image/jpeg", "image/gif", "image/webp", "image/bmp"
+    };
+    private static final byte UNKNOWN_TYPE = 0;
+    //识别类型需要的文件头长度
+    private static final int SNIFF_LENGTH = 12;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path objects;
+    private final Path temp;
+    private final FileChannel index;
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    //最近一次新增的图片，GET /image 返回它
+    private volatile Image latest;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+
+    /**
+     * 图片元数据
+     */
+    record Image(String id, long size, long lastModified, byte type) {
+        String eTag() {
+            return "\"" + id + "\"";
+        }
+
+        String contentType() {
+            return CONTENT_TYPES[type];
+        }
+    }
+
+    /**
+     * 索引的一段：每个槽位占 hashes 中连续4个long，sizes 为0表示空槽（空图片不会被保存）
+     */
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        long[] hashes = new long[INITIAL_CAPACITY * 4];
+        long[] sizes = new long[INITIAL_CAPACITY];
+        long[] modified = new long[INITIAL_CAPACITY];
+        byte[] types = new byte[INITIAL_CAPACITY];
+        int size;
+
+        int find(long[] key) {
+            int mask = sizes.length - 1;
+            for (int slot = (int) key[1] & mask; sizes[slot] != 0; slot = (slot + 1) & mask) {
+                int base = slot * 4;
+                if (hashes[base] == key[0] && hashes[base + 1] == key[1]
+                        && hashes[base + 2] == key[2] && hashes[base + 3] == key[3]) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        void insert(long[] key, long fileSize, long lastModified, byte type) {
+            if ((size + 1) * 4L > sizes.length * 3L) {
+                grow();
+            }
+            int mask = sizes.length - 1;
+            int slot = (int) key[1] & mask;
+            while (sizes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(key, 0, hashes, slot * 4, 4);
+            sizes[slot] = fileSize;
+            modified[slot] = lastModified;
+            types[slot] = type;
+            size++;
+        }
+
+        Image image(int slot, String id) {
+            return new Image(id, sizes[slot], modified[slot], types[slot]);
+        }
+
+        /**
+         * 删除后把同一探测链上的后续项前移，不留删除标记
+         */
+        void remove(int slot) {
+            int mask = sizes.length - 1;
+            int hole = slot;
+            for (int i = (hole + 1) & mask; sizes[i] != 0; i = (i + 1) & mask) {
+                int home = (int) hashes[i * 4 + 1] & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    System.arraycopy(hashes, i * 4, hashes, hole * 4, 4);
+                    sizes[hole] = sizes[i];
+                    modified[hole] = modified[i];
+                    types[hole] = types[i];
+                    hole = i;
+                }
+            }
+            sizes[hole] = 0;
+            size--;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            long[] oldSizes = sizes;
+            long[] oldModified = modified;
+            byte[] oldTypes = types;
+            hashes = new long[oldHashes.length * 2];
+            sizes = new long[oldSizes.length * 2];
+            modified = new long[oldModified.length * 2];
+            types = new byte[oldTypes.length * 2];
+            size = 0;
+            long[] key = new long[4];
+            for (int slot = 0; slot < oldSizes.length; slot++) {
+                if (oldSizes[slot] != 0) {
+                    System.arraycopy(oldHashes, slot * 4, key, 0, 4);
+                    insert(key, oldSizes[slot], oldModified[slot], oldTypes[slot]);
+                }
+            }
+        }
+    }
+
+    private ImageStore(Path root) throws IOException {
+        this.objects = root.resolve(OBJECTS_DIR);
+        this.temp = root.resolve(TEMP_DIR);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+        Files.createDirectories(objects);
+        Files.createDirectories(temp);
+        clearTemp();
+
+        Path indexPath = root.resolve(INDEX_FILE);
+        boolean rebuild = !Files.exists(indexPath);
+        this.index = FileChannel.open(indexPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (rebuild) {
+            scanObjects();
+        } else {
+            loadIndex();
+        }
+    }
+
+    /**
+     * 打开目录下的图片存储，目录不存在时创建
+     */
+    static ImageStore open(Path root) throws IOException {
+        long start = System.nanoTime();
+        ImageStore store = new ImageStore(root);
+        Log.info("已加载{}张图片，耗时{}ms", store.size(), (System.nanoTime() - start) / 1_000_000);
+        return store;
+    }
+
+    /**
+     * 把请求体保存为图片，内容已存在时直接返回已有的图片；请求体为空时返回null
+     *
+     * @param declaredType 上传声明的 Content-Type，文件头识别不出类型时使用
+     */
+    Image put(InputStream body, String declaredType) throws IOException {
+        Path tempFile = Files.createTempFile(temp, "upload-", ".tmp");
+        try {
+            MessageDigest digest = EntityTag.newDigest();
+            long size = 0;
+            byte[] head = new byte[SNIFF_LENGTH];
+            try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    if (size < SNIFF_LENGTH) {
+                        System.arraycopy(buffer, 0, head, (int) size, (int) Math.min(n, SNIFF_LENGTH - size));
+                    }
+                    digest.update(buffer, 0, n);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        fileChannel.write(chunk);
+                    }
+                    size += n;
+                }
+            }
+            if (size == 0) {
+                return null;
+            }
+
+            byte[] hash = digest.digest();
+            long[] key = key(hash);
+            String id = HEX.formatHex(hash);
+            Segment segment = segmentOf(key);
+            segment.lock.lock();
+            try {
+                int slot = segment.find(key);
+                if (slot >= 0) {
+                    deduplicated.increment();
+                    Image image = segment.image(slot, id);
+                    appendRecord(hash, image.size(), image.lastModified(), image.type());
+                    latest = image;
+                    return image;
+                }
+                //同一内容的并发上传在段锁内串行，只有第一个会移动文件并写索引日志
+                Path target = pathOf(id);
+                Files.createDirectories(target.getParent());
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+                byte type = sniff(head, (int) Math.min(size, SNIFF_LENGTH));
+                return add(segment, hash, key, attributes, type != UNKNOWN_TYPE ? type : typeOf(declaredType));
+            } finally {
+                segment.lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * 查找图片，ID格式错误或不存在时返回null。
+     * 索引中没有但文件存在时（写入文件后、写入索引日志前崩溃）补上索引
+     */
+    Image get(String id) throws IOException {
+        byte[] hash = parseId(id);
+        if (hash == null) {
+            return null;
+        }
+        long[] key = key(hash);
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key);
+            if (slot >= 0) {
+                return segment.image(slot, HEX.formatHex(hash));
+            }
+            Path file = pathOf(HEX.formatHex(hash));
+            BasicFileAttributes attributes = readAttributes(file);
+            if (attributes == null || attributes.size() == 0) {
+                return null;
+            }
+            Log.info("图片不在索引中，已重新加入：{}", HEX.formatHex(hash));
+            return add(segment, hash, key, attributes, sniff(file));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 文件已在服务器之外被删除时从索引中移除
+     */
+    void remove(String id) {
+        byte[] hash = parseId(id);
+        if (hash == null) {
+            return;
+        }
+        long[] key = key(hash);
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key);
+            if (slot >= 0) {
+                bytes.add(-segment.sizes[slot]);
+                count.decrement();
+                segment.remove(slot);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    Image latest() {
+        return latest;
+    }
+
+    Path pathOf(String id) {
+        return objects.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+    }
+
+    int size() {
+        return count.intValue();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    long deduplicated() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * 调用方持有段锁
+     */
+    private Image add(Segment segment, byte[] hash, long[] key, BasicFileAttributes attributes, byte type)
+            throws IOException {
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        appendRecord(hash, attributes.size(), lastModified, type);
+        segment.insert(key, attributes.size(), lastModified, type);
+        count.increment();
+        bytes.add(attributes.size());
+        Image image = new Image(HEX.formatHex(hash), attributes.size(), lastModified, type);
+        latest = image;
+        return image;
+    }
+
+    private void appendRecord(byte[] hash, long size, long lastModified, byte type) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(hash).putLong(size).putLong(lastModified).put(type);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt((int) crc.getValue()).flip();
+        indexLock.lock();
+        try {
+            while (record.hasRemaining()) {
+                index.write(record);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * 以内存映射读取索引日志，从第一条不完整或校验失败的记录处截断。
+     * 旧版日志没有类型字段，按文件头识别每张图片的类型后以新格式重写
+     */
+    private void loadIndex() throws IOException {
+        long size = index.size();
+        if (size < 4) {
+            index.truncate(0);
+            scanObjects();
+            return;
+        }
+        MappedByteBuffer buffer = index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int magic = buffer.getInt();
+        if (magic != INDEX_MAGIC && magic != LEGACY_INDEX_MAGIC) {
+            throw new IOException("图片索引格式错误");
+        }
+        boolean legacy = magic == LEGACY_INDEX_MAGIC;
+        int recordSize = legacy ? LEGACY_RECORD_SIZE : RECORD_SIZE;
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[recordSize];
+        while (buffer.remaining() >= recordSize) {
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, recordSize - 4);
+            ByteBuffer fields = ByteBuffer.wrap(record, HASH_LENGTH, recordSize - HASH_LENGTH);
+            long fileSize = fields.getLong();
+            long lastModified = fields.getLong();
+            byte type = legacy ? UNKNOWN_TYPE : fields.get();
+            if ((int) crc.getValue() != fields.getInt() || fileSize <= 0 || type < 0 || type >= CONTENT_TYPES.length) {
+                buffer.position(buffer.position() - recordSize);
+                break;
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            System.arraycopy(record, 0, hash, 0, HASH_LENGTH);
+            if (legacy) {
+                type = sniff(pathOf(HEX.formatHex(hash)));
+            }
+            insertLoaded(hash, fileSize, lastModified, type);
+            latest = new Image(HEX.formatHex(hash), fileSize, lastModified, type);
+        }
+        long valid = buffer.position();
+        if (legacy) {
+            rewriteIndex();
+            return;
+        }
+        if (valid < size) {
+            Log.warn("图片索引末尾有{}字节不完整的记录，已截断", size - valid);
+            index.truncate(valid);
+        }
+        index.position(valid);
+    }
+
+    /**
+     * 以当前格式重写整个索引日志，只在启动时调用；最近的图片写在最后
+     */
+    private void rewriteIndex() throws IOException {
+        index.truncate(0);
+        index.position(0);
+        writeHeader();
+        long[] key = new long[4];
+        ByteBuffer hash = ByteBuffer.allocate(HASH_LENGTH);
+        for (Segment segment : segments) {
+            for (int slot = 0; slot < segment.sizes.length; slot++) {
+                if (segment.sizes[slot] != 0) {
+                    System.arraycopy(segment.hashes, slot * 4, key, 0, 4);
+                    hash.clear();
+                    hash.putLong(key[0]).putLong(key[1]).putLong(key[2]).putLong(key[3]);
+                    appendRecord(hash.array(), segment.sizes[slot], segment.modified[slot], segment.types[slot]);
+                }
+            }
+        }
+        if (latest != null) {
+            appendRecord(HEX.parseHex(latest.id()), latest.size(), latest.lastModified(), latest.type());
+        }
+        Log.info("图片索引已升级为新格式");
+    }
+
+    /**
+     * 索引日志不存在时遍历 objects 目录重建索引并写出新的日志，修改时间最晚的图片作为最近的图片写在最后
+     */
+    private void scanObjects() throws IOException {
+        writeHeader();
+        Image newest = null;
+        try (Stream<Path> files = Files.find(objects, 3, (path, attributes) -> attributes.isRegularFile())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                byte[] hash = parseId(file.getFileName().toString());
+                BasicFileAttributes attributes = readAttributes(file);
+                if (hash == null || attributes == null || attributes.size() == 0 || !file.equals(pathOf(HEX.formatHex(hash)))) {
+                    continue;
+                }
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                byte type = sniff(file);
+                if (insertLoaded(hash, attributes.size(), lastModified, type)) {
+                    appendRecord(hash, attributes.size(), lastModified, type);
+                    if (newest == null || lastModified > newest.lastModified()) {
+                        newest = new Image(HEX.formatHex(hash), attributes.size(), lastModified, type);
+                    }
+                }
+            }
+        }
+        if (newest != null) {
+            appendRecord(HEX.parseHex(newest.id()), newest.size(), newest.lastModified(), newest.type());
+            latest = newest;
+        }
+        Log.info("已扫描图片目录并重建索引");
+    }
+
+    private boolean insertLoaded(byte[] hash, long size, long lastModified, byte type) {
+        long[] key = key(hash);
+        Segment segment = segmentOf(key);
+        if (segment.find(key) >= 0) {
+            return false;
+        }
+        segment.insert(key, size, lastModified, type);
+        count.increment();
+        bytes.add(size);
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(INDEX_MAGIC).flip();
+        while (header.hasRemaining()) {
+            index.write(header);
+        }
+    }
+
+    /**
+     * 删除上次运行遗留的临时文件
+     */
+    private void clearTemp() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(temp)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Segment segmentOf(long[] key) {
+        return segments[(int) (key[0] >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static long[] key(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        return new long[]{buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong()};
+    }
+
+    /**
+     * 解析64位十六进制ID，大小写均可，格式错误时返回null
+     */
+    private static byte[] parseId(String id) {
+        if (id == null || id.length() != HASH_LENGTH * 2) {
+            return null;
+        }
+        try {
+            return HEX.parseHex(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取文件头识别类型，文件不存在或识别不出时返回 UNKNOWN_TYPE
+     */
+    private static byte sniff(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(SNIFF_LENGTH);
+            return sniff(head, head.length);
+        } catch (NoSuchFileException e) {
+            return UNKNOWN_TYPE;
+        }
+    }
+
+    /**
+     * 按魔数识别常见图片格式
+     */
+    private static byte sniff(byte[] head, int length) {
+        if (startsWith(head, length, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n')) {
+            return 1;
+        }
+        if (startsWith(head, length, 0xFF, 0xD8, 0xFF)) {
+            return 2;
+        }
+        if (startsWith(head, length, 'G', 'I', 'F', '8')) {
+            return 3;
+        }
+        if (length >= 12 && startsWith(head, length, 'R', 'I', 'F', 'F')
+                && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') {
+            return 4;
+        }
+        if (startsWith(head, length, 'B', 'M')) {
+            return 5;
+        }
+        return UNKNOWN_TYPE;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 上传声明的类型，不在白名单中时返回 UNKNOWN_TYPE；忽略 ; 之后的参数
+     */
+    private static byte typeOf(String contentType) {
+        if (contentType == null) {
+            return UNKNOWN_TYPE;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mediaType = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+        for (byte i = 1; i < CONTENT_TYPES.length; i++) {
+            if (CONTENT_TYPES[i].equalsIgnoreCase(mediaType)) {
+                return i;
+            }
+        }
+        return UNKNOWN_TYPE;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,653 @@
+package server;
+
+import common.ChunkedBodyScanner;
+import common.ChunkedInputStream;
+import common.HttpHead;
+import common.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * NIO 引擎中的单个连接状态
+ * <p>
+ * 读到的数据累积在读缓冲区中，增量地查找请求头结束位置，
+ * 收齐请求头和请求体后交给路由器处理；响应进入发送队列，
+ * 写不完时注册 OP_WRITE 并暂停读取，由可写事件驱动继续发送
+ * <p>
+ * 连接本身作为响应的输出目标：响应头等内存数据先累积再入队，
+ * 文件区域以 FileChannel.transferTo 的方式在可写时分段发送
+ * <p>
+ * 读缓冲区中有多个流水线请求时依次处理，响应留在发送队列中，
+ * 达到数量或字节上限、或缓冲区中没有完整请求时，相邻的内存数据合并为一次聚集写
+ * <p>
+ * 连接在事件循环的时间轮中登记超时，收齐请求头、读请求体、等待可写和空闲时分别进入对应阶段
+ * <p>
+ * 处理函数把耗时的工作（如密码哈希）交给其他线程时，连接暂停读取和处理后续请求，
+ * 完成后由事件循环发送响应并继续，保证流水线请求的响应顺序
+ */
+class NioConnection implements ResponseOutput {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    //一次聚集写最多的缓冲区数，与常见的 IOV_MAX 一致
+    private static final int MAX_GATHER = 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Executor eventLoop;
+    private final HttpRouter router;
+    private final RateLimiter rateLimiter;
+    private final Semaphore connectionPermits;
+    private final InetAddress clientAddress;
+    private final ConnectionTimeouts.Timer timer;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final Queue<PendingWrite> writeQueue = new ArrayDeque<>();
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    //发送队列中的字节数，用于限制合并写出前积压的响应
+    private long queuedBytes;
+
+    //当前请求的解析进度：head为已解析的请求头（解析后从缓冲区移除），scanFrom为下次继续查找空行或扫描分块的位置
+    private HttpHead head;
+    private int scanFrom = 0;
+    private long bodyLength;
+    private boolean chunked;
+    private ChunkedBodyScanner chunkScanner;
+    //超过 MAX_BUFFERED_BODY_SIZE 的请求体边收边写入临时文件，读缓冲区不随请求体增长
+    private FileChannel spool;
+    private long spooled;
+    //正在处理的请求的临时文件，处理完后关闭并删除
+    private FileChannel requestSpool;
+    private boolean closeAfterWrite;
+    //正在等待异步处理完成，期间不读取也不处理后续请求
+    private boolean awaiting;
+    //当前请求第一个字节到达的时刻，0表示还没有收到
+    private long requestStartNanos;
+    //连接上已处理的请求数
+    private int served;
+    //连接指标：是否正在处理请求，是否已关闭
+    private boolean active;
+    private boolean closed;
+
+    NioConnection(SocketChannel channel, SelectionKey key, Executor eventLoop, HttpRouter router,
+                  RateLimiter rateLimiter, Semaphore connectionPermits, ConnectionTimeouts timeouts) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.router = router;
+        this.rateLimiter = rateLimiter;
+        this.connectionPermits = connectionPermits;
+        this.clientAddress = channel.socket().getInetAddress();
+        this.timer = timeouts.register(this::close);
+        ServerMetrics.connectionOpened();
+    }
+
+    void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n == -1) {
+            Log.debug("客户端已关闭");
+            close();
+            return;
+        }
+        ServerMetrics.BYTES_RECEIVED.add(n);
+        if (n > 0) {
+            timer.received();
+        }
+        processRequests();
+    }
+
+    void onWritable() throws IOException {
+        writePending();
+        //发送队列清空后继续处理已缓冲的流水线请求
+        if (writeQueue.isEmpty() && key.isValid()) {
+            processRequests();
+        }
+    }
+
+    /**
+     * 依次处理读缓冲区中已完整的请求，响应先留在发送队列中合并写出；
+     * 写不完时等待可写事件，之前不处理下一个请求
+     */
+    private void processRequests() throws IOException {
+        int batched = 0;
+        while ((batched > 0 || writeQueue.isEmpty()) && !closeAfterWrite && !awaiting) {
+            HttpRequest request = nextRequest();
+            if (request == null) {
+                break;
+            }
+            try {
+                dispatch(request);
+            } finally {
+                //异步处理的请求体在完成后关闭
+                if (!awaiting) {
+                    closeRequestSpool();
+                }
+            }
+            if (++batched >= ServerConfig.PIPELINE_DEPTH || queuedBytes >= ServerConfig.PIPELINE_BATCH_BYTES) {
+                writePending();
+                batched = 0;
+            }
+        }
+        //nextRequest也可能放入100 Continue或错误响应
+        writePending();
+    }
+
+    /**
+     * 尝试从读缓冲区中切出一个完整请求，数据不足时返回null
+     * <p>
+     * 请求头解析后即从缓冲区移除；不超过 MAX_BUFFERED_BODY_SIZE 的请求体在缓冲区中收齐，
+     * 更大的请求体每次读到后写入临时文件，缓冲区中只保留未处理的数据
+     */
+    private HttpRequest nextRequest() throws IOException {
+        byte[] buf = readBuffer.array();
+        int length = readBuffer.position();
+
+        if (head == null) {
+            if (requestStartNanos == 0 && length > 0) {
+                requestStartNanos = System.nanoTime();
+            }
+            int end = HttpHead.findHeadEnd(buf, scanFrom, length);
+            if (end < 0) {
+                if (length > ServerConfig.MAX_HEADER_SIZE) {
+                    throw new IOException("请求头过大");
+                }
+                //空行可能跨越两次读取，回退后下次继续查找
+                scanFrom = Math.max(0, length - 2);
+                ensureCapacity(length + 1);
+                return null;
+            }
+            head = HttpHead.parse(buf, 0, end);
+            timer.enter(ConnectionTimeouts.Phase.BODY);
+
+            String transferEncoding = head.header("Transfer-Encoding");
+            chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+            bodyLength = chunked ? 0 : Math.max(0, head.contentLength());
+            if (bodyLength > ServerConfig.MAX_BODY_SIZE) {
+                reject(HttpResponse::sendPayloadTooLarge);
+                return null;
+            }
+            if ((chunked || bodyLength > 0) && "100-continue".equalsIgnoreCase(head.header("Expect"))
+                    && length == end) {
+                enqueue(HttpResponse::sendContinue);
+            }
+
+            consume(end);
+            length -= end;
+            scanFrom = 0;
+            if (chunked) {
+                chunkScanner = new ChunkedBodyScanner();
+            } else if (bodyLength > ServerConfig.MAX_BUFFERED_BODY_SIZE) {
+                openSpool();
+            }
+        }
+
+        HttpRequest request;
+        if (chunked) {
+            int end = chunkScanner.scan(buf, scanFrom, length);
+            if (chunkScanner.scanned() > ServerConfig.MAX_BODY_SIZE) {
+                reject(HttpResponse::sendPayloadTooLarge);
+                return null;
+            }
+            if (end < 0) {
+                if (spool == null && length > ServerConfig.MAX_BUFFERED_BODY_SIZE) {
+                    openSpool();
+                }
+                if (spool != null) {
+                    spool(length);
+                    scanFrom = 0;
+                } else {
+                    //已扫描的数据不再重复扫描
+                    scanFrom = length;
+                    ensureCapacity(length + 1);
+                }
+                return null;
+            }
+            if (spool != null) {
+                spool(end);
+                request = new HttpRequest(head, new ChunkedInputStream(spooledBody(), ServerConfig.MAX_BODY_SIZE));
+            } else {
+                try (InputStream chunks = new ChunkedInputStream(
+                        new ByteArrayInputStream(buf, 0, end), ServerConfig.MAX_BODY_SIZE)) {
+                    request = new HttpRequest(head, chunks.readAllBytes());
+                }
+                consume(end);
+            }
+        } else if (spool != null) {
+            spool((int) Math.min(length, bodyLength - spooled));
+            if (spooled < bodyLength) {
+                return null;
+            }
+            request = new HttpRequest(head, spooledBody());
+        } else {
+            int total = (int) bodyLength;
+            if (length < total) {
+                ensureCapacity(total);
+                return null;
+            }
+            byte[] body = null;
+            if (total > 0) {
+                body = new byte[total];
+                System.arraycopy(buf, 0, body, 0, total);
+            }
+            request = new HttpRequest(head, body);
+            consume(total);
+        }
+        request.setParseNanos(System.nanoTime() - requestStartNanos);
+        requestStartNanos = 0;
+        head = null;
+        chunkScanner = null;
+        scanFrom = 0;
+        shrinkBuffer();
+        return request;
+    }
+
+    /**
+     * 移除缓冲区开头 count 字节已处理的数据，剩余的流水线数据移到开头
+     */
+    private void consume(int count) {
+        readBuffer.flip();
+        readBuffer.position(count);
+        readBuffer.compact();
+    }
+
+    /**
+     * 为当前请求体创建临时文件，关闭时自动删除
+     */
+    private void openSpool() throws IOException {
+        Path file = Files.createTempFile("http-body-", ".tmp");
+        spool = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        spooled = 0;
+    }
+
+    /**
+     * 把缓冲区开头 count 字节写入临时文件并从缓冲区移除
+     */
+    private void spool(int count) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(readBuffer.array(), 0, count);
+        while (data.hasRemaining()) {
+            spooled += spool.write(data);
+        }
+        consume(count);
+    }
+
+    /**
+     * 请求体已收齐，临时文件交给请求读取，处理完请求后由 {@link #closeRequestSpool()} 删除
+     */
+    private InputStream spooledBody() throws IOException {
+        spool.position(0);
+        requestSpool = spool;
+        spool = null;
+        return new BufferedInputStream(Channels.newInputStream(requestSpool));
+    }
+
+    private void closeRequestSpool() {
+        if (requestSpool != null) {
+            closeQuietly(requestSpool);
+            requestSpool = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.warn("删除请求体临时文件失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 请求处理过程中扩大的读缓冲区在剩余数据放得下时恢复初始大小，大请求不会一直占用连接的内存
+     */
+    private void shrinkBuffer() {
+        if (readBuffer.capacity() > INITIAL_BUFFER_SIZE && readBuffer.position() < INITIAL_BUFFER_SIZE) {
+            ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            readBuffer.flip();
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        }
+    }
+
+    /**
+     * 把一个由连接自身生成的响应（如100 Continue）放入发送队列
+     */
+    private void enqueue(Consumer<HttpResponse> sender) {
+        sender.accept(new HttpResponse(this));
+    }
+
+    /**
+     * 发送错误响应后关闭连接，缓冲区中剩余的数据不再处理
+     */
+    private void reject(Consumer<HttpResponse> sender) {
+        enqueue(sender);
+        closeAfterWrite = true;
+        readBuffer.clear();
+        head = null;
+        chunkScanner = null;
+        if (spool != null) {
+            closeQuietly(spool);
+            spool = null;
+        }
+    }
+
+    private void dispatch(HttpRequest request) {
+        if (request.getMethod() == null) {
+            closeAfterWrite = true;
+            return;
+        }
+        if (request.getPath() == null) {
+            reject(response -> {
+                response.setKeepAlive(false);
+                response.sendBadRequest("Missing request target");
+            });
+            return;
+        }
+        boolean sampled = Log.sampled(request.getPath());
+        if (sampled) {
+            Log.info("接收到请求：\n{}", request);
+        }
+        served++;
+        closeAfterWrite = !request.isKeepAlive() || served >= ServerConfig.KEEP_ALIVE_MAX_REQUESTS;
+        if (request.isKeepAlive() && closeAfterWrite) {
+            ServerMetrics.KEEP_ALIVE_EXHAUSTED.increment();
+        }
+        if (!active) {
+            ServerMetrics.connectionActive();
+            active = true;
+        }
+
+        HttpResponse response = new HttpResponse(this);
+        response.setSampled(sampled);
+        response.setRemainingRequests(ServerConfig.KEEP_ALIVE_MAX_REQUESTS - served);
+        //路由之前发出的响应（如429）同样按请求保持连接，需要关闭连接的响应（413、503）自行改为close
+        response.setKeepAlive(request.isKeepAlive());
+        long routeStart = System.nanoTime();
+        //事件循环不能阻塞等待处理许可，NIO引擎只做按IP限流
+        long retryNanos = rateLimiter.acquire(clientAddress);
+        if (retryNanos > 0) {
+            response.sendTooManyRequests(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryNanos + 999_999_999)));
+        } else {
+            try {
+                router.route(request, response);
+            } catch (Exception e) {
+                Log.error("路由处理错误: {}", e.getMessage());
+                response.sendInternalServerError();
+            }
+            if (response.getDeferred() != null) {
+                awaiting = true;
+                response.getDeferred().thenAccept(send -> eventLoop.execute(() -> resume(request, response, send, routeStart)));
+                return;
+            }
+        }
+        ServerMetrics.record(request, response, System.nanoTime() - routeStart);
+    }
+
+    /**
+     * 在事件循环线程上发送异步处理完的响应，然后继续处理已缓冲的流水线请求；连接已关闭（如超时）时丢弃
+     */
+    private void resume(HttpRequest request, HttpResponse response, Runnable send, long routeStart) {
+        awaiting = false;
+        if (closed) {
+            return;
+        }
+        try {
+            try {
+                send.run();
+            } catch (RuntimeException e) {
+                Log.error("路由处理错误: {}", e.getMessage());
+                response.sendInternalServerError();
+            } finally {
+                closeRequestSpool();
+            }
+            ServerMetrics.record(request, response, System.nanoTime() - routeStart);
+            processRequests();
+        } catch (IOException | RuntimeException e) {
+            Log.warn("处理客户端连接时发生错误：{}", e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        pendingBytes.write(b, off, len);
+    }
+
+    /**
+     * 缓冲区不复制，整组作为一项放入发送队列，写出时使用聚集写
+     */
+    @Override
+    public void write(ByteBuffer... buffers) {
+        flush();
+        for (ByteBuffer buffer : buffers) {
+            queuedBytes += buffer.remaining();
+        }
+        writeQueue.add(new GatherWrite(buffers));
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) {
+        flush();
+        queuedBytes += count;
+        writeQueue.add(new FileWrite(file, position, count));
+    }
+
+    /**
+     * 把累积的内存数据放入发送队列，真正的写出由事件循环驱动
+     */
+    @Override
+    public void flush() {
+        if (pendingBytes.size() > 0) {
+            queuedBytes += pendingBytes.size();
+            writeQueue.add(new GatherWrite(ByteBuffer.wrap(pendingBytes.toByteArray())));
+            pendingBytes.reset();
+        }
+    }
+
+    @Override
+    public void release(Closeable resource) {
+        flush();
+        writeQueue.add(new ReleaseWrite(resource));
+    }
+
+    /**
+     * 尽量写出发送队列，写不完时等待可写事件
+     */
+    private void writePending() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            PendingWrite next = writeQueue.peek();
+            if (next instanceof GatherWrite) {
+                if (!writeGathered()) {
+                    break;
+                }
+            } else {
+                if (!next.writeTo(channel)) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+        }
+
+        if (!writeQueue.isEmpty()) {
+            //每次可写事件都意味着发送有进展，写超时从最近一次可写算起
+            timer.enter(ConnectionTimeouts.Phase.WRITE);
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        queuedBytes = 0;
+        if (awaiting) {
+            //等待期间缓冲区可能已满，继续关注可读会空转
+            key.interestOps(0);
+        } else if (closeAfterWrite) {
+            close();
+        } else {
+            if (active) {
+                ServerMetrics.connectionIdle();
+                active = false;
+            }
+            timer.requestDone(readBuffer.position() > 0);
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 队首连续的内存数据用一次聚集写发出，移除已写完的项，全部写完时返回true
+     */
+    private boolean writeGathered() throws IOException {
+        List<ByteBuffer> gather = new ArrayList<>();
+        long total = 0;
+        for (PendingWrite pending : writeQueue) {
+            if (!(pending instanceof GatherWrite write)
+                    || (!gather.isEmpty() && gather.size() + write.buffers().length > MAX_GATHER)) {
+                break;
+            }
+            for (ByteBuffer buffer : write.buffers()) {
+                gather.add(buffer);
+                total += buffer.remaining();
+            }
+        }
+        long n = channel.write(gather.toArray(new ByteBuffer[0]));
+        ServerMetrics.BYTES_SENT.add(n);
+
+        while (writeQueue.peek() instanceof GatherWrite write && !write.hasRemaining()) {
+            writeQueue.poll();
+        }
+        return n == total;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (readBuffer.capacity() >= capacity) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, readBuffer.capacity() * 2));
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true;
+            ServerMetrics.connectionClosed(active);
+            connectionPermits.release();
+            timer.cancel();
+        }
+        PendingWrite pending;
+        while ((pending = writeQueue.poll()) != null) {
+            pending.discard();
+        }
+        if (spool != null) {
+            closeQuietly(spool);
+            spool = null;
+        }
+        closeRequestSpool();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("关闭连接失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 发送队列中的一项，可写时尽量写出
+     */
+    private interface PendingWrite {
+        /**
+         * 写出尽可能多的数据，全部写完时返回true
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * 连接关闭时未写出的项需要释放占用的资源
+         */
+        default void discard() {
+        }
+    }
+
+    /**
+     * 内存中的一组缓冲区，由 {@link #writeGathered()} 与相邻的项合并写出
+     */
+    private record GatherWrite(ByteBuffer... buffers) implements PendingWrite {
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            ServerMetrics.BYTES_SENT.add(channel.write(buffers));
+            return !hasRemaining();
+        }
+
+        boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class FileWrite implements PendingWrite {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileWrite(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (remaining > 0) {
+                long n = file.transferTo(position, remaining, channel);
+                if (n <= 0) {
+                    //套接字发送缓冲区已满，或文件比预期短
+                    if (position >= file.size()) {
+                        throw new IOException("文件长度小于预期");
+                    }
+                    return false;
+                }
+                position += n;
+                remaining -= n;
+                ServerMetrics.BYTES_SENT.add(n);
+            }
+            return true;
+        }
+    }
+
+    private record ReleaseWrite(Closeable resource) implements PendingWrite {
+        @Override
+        public boolean writeTo(SocketChannel channel) {
+            discard();
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                Log.warn("释放资源失败：{}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import common.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 单线程事件循环，负责一组连接的读、解析、路由和写回
+ * <p>
+ * 每个事件循环有自己的连接超时时间轮，select 最多等待一个刻度，之后在本线程中关闭到期的连接。
+ * 其他线程通过 {@link #execute} 把任务（如异步处理完成后发送响应）交回本线程执行
+ */
+class NioEventLoop implements Runnable, Executor {
+    private final HttpRouter router;
+    private final RateLimiter rateLimiter;
+    private final Semaphore connectionPermits;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConnectionTimeouts timeouts = new ConnectionTimeouts(1, ServerConfig.TIMEOUT_TICK_MILLIS);
+
+    NioEventLoop(HttpRouter router, RateLimiter rateLimiter, Semaphore connectionPermits) throws IOException {
+        this.router = router;
+        this.rateLimiter = rateLimiter;
+        this.connectionPermits = connectionPermits;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * 由接收线程调用，把新连接交给本事件循环
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * 可由任意线程调用，任务在事件循环线程上执行
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(Math.max(1, ServerConfig.TIMEOUT_TICK_MILLIS));
+                registerPending();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Log.warn("处理客户端连接时发生错误：{}", e.getMessage());
+                        connection.close();
+                    }
+                }
+                timeouts.expire();
+            } catch (IOException e) {
+                Log.warn("事件循环发生错误：{}", e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.warn("事件循环任务执行失败：{}", e.getMessage());
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, this, router, rateLimiter, connectionPermits, timeouts));
+            } catch (IOException e) {
+                Log.warn("注册连接失败：{}", e.getMessage());
+                connectionPermits.release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import common.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 基于 Selector 的非阻塞服务器引擎
+ * <p>
+ * 一个接收线程负责 accept，之后按轮询把连接交给 N 个事件循环线程，
+ * 空闲的长连接只占用一个 SelectionKey 和读缓冲区，不占用线程
+ */
+class NioHttpServer {
+    private final int port;
+    private final HttpRouter router;
+    private final NioEventLoop[] eventLoops;
+    private final RateLimiter rateLimiter;
+    //连接关闭时由事件循环归还
+    private final Semaphore connectionPermits = new Semaphore(ServerConfig.MAX_CONNECTIONS);
+
+    NioHttpServer(int port, HttpRouter router, int eventLoopCount, RateLimiter rateLimiter) {
+        this.port = port;
+        this.router = router;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.rateLimiter = rateLimiter;
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop(router, rateLimiter, connectionPermits);
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            Log.info("NIO服务器在端口{}启动，事件循环数：{}", port, eventLoops.length);
+
+            int next = 0;
+            while (true) {
+                //与阻塞引擎相同，连接数达到上限时新连接留在backlog中
+                connectionPermits.acquireUninterruptibly();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    Log.warn("接受连接时发生错误：{}", e.getMessage());
+                    continue;
+                }
+                Log.debug("接收到来自{}的连接", channel.socket().getInetAddress());
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import common.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按客户端IP的令牌桶限流
+ * <p>
+ * 用GCRA实现：每个IP只保存一个“理论到达时刻”，每个请求把它推后一个发放间隔，
+ * 超出当前时刻的部分不超过桶容量对应的时长时放行，整个判断是一次CAS，不需要锁。
+ * 理论到达时刻早于当前时刻的IP令牌已经满了，与不存在等价，由后台线程每秒清除，
+ * 表的大小只与最近活跃的客户端数有关。IPv6客户端按/64前缀合并，同一网段轮换地址不会得到新的令牌桶；
+ * 表达到上限时，不在表中的客户端共用一个溢出桶，仍然受限流约束
+ */
+class RateLimiter {
+    private final long emissionNanos;
+    private final long toleranceNanos;
+    private final int maxClients;
+    //键为IPv4地址或IPv6地址的前64位
+    private final ConcurrentHashMap<Object, AtomicLong> clients = new ConcurrentHashMap<>();
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param perSecond 每秒补充的令牌数，0表示不限流
+     * @param burst     桶容量，即允许的突发请求数
+     */
+    RateLimiter(double perSecond, int burst, int maxClients) {
+        this.emissionNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        this.toleranceNanos = emissionNanos * Math.max(0, burst - 1);
+        this.maxClients = maxClients;
+        if (emissionNanos > 0) {
+            Thread.ofPlatform().daemon().name("rate-limiter-sweeper").start(this::sweepLoop);
+        }
+    }
+
+    /**
+     * 消耗客户端的一个令牌
+     *
+     * @return 0表示放行，否则为令牌补充前还需等待的纳秒数
+     */
+    long acquire(InetAddress client) {
+        if (emissionNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        Object key = keyOf(client);
+        AtomicLong arrival = clients.get(key);
+        if (arrival == null) {
+            if (clients.mappingCount() >= maxClients) {
+                ServerMetrics.RATE_LIMIT_UNTRACKED.increment();
+                arrival = overflow;
+            } else {
+                arrival = clients.computeIfAbsent(key, k -> new AtomicLong(now));
+            }
+        }
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now) + emissionNanos;
+            long wait = next - now - emissionNanos - toleranceNanos;
+            if (wait > 0) {
+                ServerMetrics.RATE_LIMITED_REQUESTS.increment();
+                return wait;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * IPv6客户端通常分到整个/64网段，按前缀计数
+     */
+    private static Object keyOf(InetAddress client) {
+        if (client instanceof Inet6Address) {
+            byte[] address = client.getAddress();
+            long prefix = 0;
+            for (int i = 0; i < 8; i++) {
+                prefix = (prefix << 8) | (address[i] & 0xff);
+            }
+            return prefix;
+        }
+        return client;
+    }
+
+    boolean isEnabled() {
+        return emissionNanos > 0;
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    /**
+     * 清除令牌已满的客户端。与 acquire 并发时最多丢失一次刚放行的计数，只会让限流略宽松
+     */
+    private void sweepLoop() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+                long now = System.nanoTime();
+                clients.values().removeIf(arrival -> arrival.get() - now <= 0);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error("限流表清理错误：{}", e.getMessage());
+            }
+        }
+    }
+}
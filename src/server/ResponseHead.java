@@ -0,0 +1,174 @@
+package server;
+
+import common.HttpDate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 直接以字节形式拼装响应头
+ * <p>
+ * 状态行、常用头名和固定取值预先编码为字节常量，Date头每秒只格式化一次，
+ * 数值直接写成十进制数字，不经过 String 和 StringBuilder
+ */
+final class ResponseHead {
+    private static final int FIRST_STATUS = 100;
+    private static final int LAST_STATUS = 599;
+    //HTTP/1.1的状态行，下标为状态码减100，未知状态码为null
+    private static final byte[][] STATUS_LINES = new byte[LAST_STATUS - FIRST_STATUS + 1][];
+
+    static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    static final byte[] SERVER = ascii("Server: HttpServer/1.0\r\n");
+    static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    //空闲超时是固定配置，只有剩余请求数需要每次写入；秒数向下取整，客户端不会在服务器关闭连接之后还复用它
+    static final byte[] KEEP_ALIVE_MAX = ascii("Keep-Alive: " + (ServerConfig.IDLE_TIMEOUT_MILLIS >= 1000
+            ? "timeout=" + ServerConfig.IDLE_TIMEOUT_MILLIS / 1000 + ", " : "") + "max=");
+    static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] SEPARATOR = ascii(": ");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    //最近一次生成的Date头整行，秒数变化时才重新格式化
+    private static volatile CachedDate cachedDate = new CachedDate(-1, null);
+
+    private record CachedDate(long second, byte[] line) {
+    }
+
+    static {
+        for (int code = FIRST_STATUS; code <= LAST_STATUS; code++) {
+            String reason = HttpResponse.reasonPhrase(code);
+            if (reason != null) {
+                STATUS_LINES[code - FIRST_STATUS] = ascii("HTTP/1.1 " + code + " " + reason + "\r\n");
+            }
+        }
+    }
+
+    private byte[] buf;
+    private int count;
+
+    ResponseHead() {
+        this.buf = new byte[256];
+    }
+
+    ResponseHead statusLine(String version, int statusCode, String statusText) {
+        if ("HTTP/1.1".equals(version) && statusCode >= FIRST_STATUS && statusCode <= LAST_STATUS
+                && STATUS_LINES[statusCode - FIRST_STATUS] != null) {
+            return line(STATUS_LINES[statusCode - FIRST_STATUS]);
+        }
+        text(version);
+        write((byte) ' ');
+        number(statusCode);
+        write((byte) ' ');
+        text(statusText);
+        return line(CRLF);
+    }
+
+    /**
+     * 写入预先编码的整行或头名
+     */
+    ResponseHead line(byte[] bytes) {
+        ensureCapacity(count + bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    ResponseHead header(byte[] encodedName, String value) {
+        line(encodedName);
+        text(value);
+        return line(CRLF);
+    }
+
+    ResponseHead header(byte[] encodedName, long value) {
+        line(encodedName);
+        number(value);
+        return line(CRLF);
+    }
+
+    ResponseHead header(String name, String value) {
+        text(name);
+        line(SEPARATOR);
+        text(value);
+        return line(CRLF);
+    }
+
+    ResponseHead date() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date.second() != second) {
+            date = new CachedDate(second, ascii("Date: " + HttpDate.format(second * 1000) + "\r\n"));
+            cachedDate = date;
+        }
+        return line(date.line());
+    }
+
+    /**
+     * 写入结束头部的空行，之后不能再修改
+     */
+    ResponseHead end() {
+        return line(CRLF);
+    }
+
+    /**
+     * 包装内部数组的缓冲区，不复制
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    private void text(String value) {
+        int length = value.length();
+        ensureCapacity(count + length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                //极少出现的非ASCII取值，按UTF-8重写整个值
+                count -= i;
+                line(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buf[count++] = (byte) c;
+        }
+    }
+
+    private void number(long value) {
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+        ensureCapacity(count + 20);
+        int start = count;
+        do {
+            buf[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        //数字是倒序写入的
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    private void write(byte b) {
+        ensureCapacity(count + 1);
+        buf[count++] = b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
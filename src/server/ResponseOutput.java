@@ -0,0 +1,37 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 响应的写出目标，屏蔽阻塞套接字和NIO发送队列的差别
+ */
+interface ResponseOutput {
+    void write(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * 按顺序写出多个缓冲区，能聚集写时由一次系统调用完成
+     */
+    void write(ByteBuffer... buffers) throws IOException;
+
+    /**
+     * 把文件的一段直接发送到连接，尽量不经过Java堆（sendfile）
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * 一个响应写完。流水线中还有后续请求时，实现可以暂缓写出，与后续响应合并为一次写入
+     */
+    default void endResponse() throws IOException {
+        flush();
+    }
+
+    /**
+     * 响应中引用的资源（如打开的文件）在对应数据真正写出后关闭
+     */
+    void release(Closeable resource) throws IOException;
+}
@@ -0,0 +1,9 @@
+package server;
+
+/**
+ * 路由处理函数，与 {@link HttpRouter} 共享同样的线程安全要求
+ */
+@FunctionalInterface
+interface RouteHandler {
+    void handle(HttpRequest request, HttpResponse response);
+}
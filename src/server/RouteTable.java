@@ -0,0 +1,250 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按路径段组织的路由前缀树，每个节点带一张按请求方法索引的处理函数表
+ * <p>
+ * 路径模式由 / 分隔，{name} 段匹配任意非空段并捕获为路径参数；同一位置静态段优先于参数段。
+ * 匹配时直接在请求路径上比较字符区间，不产生子串和迭代器；匹配到带参数的路由后才按参数所在的段
+ * 记录起止位置，静态路由不分配参数数组。
+ * 路由在服务器启动前注册，之后只读，可被多个线程同时匹配
+ */
+final class RouteTable {
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS"};
+
+    private final Node root = new Node();
+
+    private static final class Node {
+        //静态子节点按段内容排序，匹配时二分查找
+        String[] keys = new String[0];
+        Node[] children = new Node[0];
+        Node paramChild;
+        String paramName;
+
+        final RouteHandler[] handlers = new RouteHandler[METHODS.length];
+        final ServerMetrics.RouteMetrics[] metrics = new ServerMetrics.RouteMetrics[METHODS.length];
+        //该路径上不支持的方法（405）共用的指标
+        ServerMetrics.RouteMetrics notAllowedMetrics;
+        //终点节点上路由的参数名，按出现顺序，以及各参数是路径中的第几段
+        String[] paramNames;
+        int[] paramSegments;
+        //预先拼好的Allow头，null表示该节点不是任何路由的终点
+        String allow;
+
+        Node staticChild(String key) {
+            int i = Arrays.binarySearch(keys, key);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            Node child = new Node();
+            keys = insert(keys, insertAt, key);
+            children = insert(children, insertAt, child);
+            return child;
+        }
+
+        Node findStatic(String path, int from, int to) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(keys[mid], path, from, to);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    void get(String pattern, RouteHandler handler) {
+        add("GET", pattern, handler);
+    }
+
+    void post(String pattern, RouteHandler handler) {
+        add("POST", pattern, handler);
+    }
+
+    /**
+     * 注册路由，同一方法和路径重复注册或同一位置参数名不一致时抛出 IllegalArgumentException
+     */
+    void add(String method, String pattern, RouteHandler handler) {
+        int methodIndex = methodIndex(method);
+        if (methodIndex < 0) {
+            throw new IllegalArgumentException("不支持的请求方法：" + method);
+        }
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("路径必须以/开头：" + pattern);
+        }
+
+        Node node = root;
+        List<String> paramNames = new ArrayList<>();
+        List<Integer> paramSegments = new ArrayList<>();
+        if (pattern.length() > 1) {
+            String[] segments = pattern.substring(1).split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                    String name = segment.substring(1, segment.length() - 1);
+                    if (node.paramChild == null) {
+                        node.paramChild = new Node();
+                        node.paramName = name;
+                    } else if (!node.paramName.equals(name)) {
+                        throw new IllegalArgumentException("参数名冲突：{" + node.paramName + "} 与 " + pattern);
+                    }
+                    if (paramNames.contains(name)) {
+                        throw new IllegalArgumentException("参数名重复：" + pattern);
+                    }
+                    paramNames.add(name);
+                    paramSegments.add(i);
+                    node = node.paramChild;
+                } else {
+                    node = node.staticChild(segment);
+                }
+            }
+        }
+
+        if (node.handlers[methodIndex] != null) {
+            throw new IllegalArgumentException("重复的路由：" + method + " " + pattern);
+        }
+        node.handlers[methodIndex] = handler;
+        node.metrics[methodIndex] = ServerMetrics.route(method, pattern);
+        if (node.notAllowedMetrics == null) {
+            node.notAllowedMetrics = ServerMetrics.route("*", pattern);
+        }
+        node.paramNames = paramNames.toArray(new String[0]);
+        node.paramSegments = paramSegments.stream().mapToInt(Integer::intValue).toArray();
+
+        StringBuilder allow = new StringBuilder();
+        for (int i = 0; i < METHODS.length; i++) {
+            if (node.handlers[i] != null) {
+                allow.append(allow.isEmpty() ? "" : ", ").append(METHODS[i]);
+            }
+        }
+        node.allow = allow.toString();
+    }
+
+    /**
+     * 匹配并调用处理函数；路径不存在时应答404，方法不支持时应答带Allow头的405
+     */
+    void dispatch(HttpRequest request, HttpResponse response) {
+        String path = request.getPath();
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            response.sendNotFound();
+            return;
+        }
+
+        Node node = path.length() == 1 ? terminal(root) : match(root, path, 0);
+        if (node == null) {
+            response.sendNotFound();
+            return;
+        }
+
+        int methodIndex = methodIndex(request.getMethod());
+        RouteHandler handler = methodIndex < 0 ? null : node.handlers[methodIndex];
+        if (handler == null) {
+            response.setRouteMetrics(node.notAllowedMetrics);
+            response.setHeader("Allow", node.allow);
+            response.sendMethodNotAllowed();
+            return;
+        }
+        if (node.paramNames.length > 0) {
+            request.setPathParams(node.paramNames, paramBounds(path, node.paramSegments));
+        }
+        response.setRouteMetrics(node.metrics[methodIndex]);
+        handler.handle(request, response);
+    }
+
+    /**
+     * 从 path[pos] 处的 / 开始匹配剩余路径段，先试静态子节点，失败后回溯到参数子节点
+     */
+    private static Node match(Node node, String path, int pos) {
+        if (pos == path.length()) {
+            return terminal(node);
+        }
+        int from = pos + 1;
+        int to = path.indexOf('/', from);
+        if (to < 0) {
+            to = path.length();
+        }
+
+        Node child = node.findStatic(path, from, to);
+        if (child != null) {
+            Node found = match(child, path, to);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.paramChild != null && to > from) {
+            return match(node.paramChild, path, to);
+        }
+        return null;
+    }
+
+    /**
+     * 按参数所在的段号（升序）取出各参数在路径中的起止位置
+     */
+    private static int[] paramBounds(String path, int[] paramSegments) {
+        int[] bounds = new int[paramSegments.length * 2];
+        int from = 1;
+        int segment = 0;
+        for (int i = 0; i < paramSegments.length; i++) {
+            for (; segment < paramSegments[i]; segment++) {
+                from = path.indexOf('/', from) + 1;
+            }
+            int to = path.indexOf('/', from);
+            bounds[i * 2] = from;
+            bounds[i * 2 + 1] = to < 0 ? path.length() : to;
+        }
+        return bounds;
+    }
+
+    private static Node terminal(Node node) {
+        return node.allow == null ? null : node;
+    }
+
+    /**
+     * 请求方法在处理函数表中的下标，不支持的方法返回-1
+     */
+    private static int methodIndex(String method) {
+        return switch (method) {
+            case "GET" -> 0;
+            case "HEAD" -> 1;
+            case "POST" -> 2;
+            case "PUT" -> 3;
+            case "DELETE" -> 4;
+            case "PATCH" -> 5;
+            case "OPTIONS" -> 6;
+            case null, default -> -1;
+        };
+    }
+
+    /**
+     * 按字符比较 key 与 path[from, to)，与 String.compareTo 顺序一致
+     */
+    private static int compare(String key, String path, int from, int to) {
+        int length = to - from;
+        int n = Math.min(key.length(), length);
+        for (int i = 0; i < n; i++) {
+            int diff = key.charAt(i) - path.charAt(from + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return key.length() - length;
+    }
+
+    private static <T> T[] insert(T[] array, int index, T value) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        result[index] = value;
+        return result;
+    }
+}
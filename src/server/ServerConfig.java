@@ -0,0 +1,132 @@
+package server;
+
+/**
+ * 服务器配置，均可通过 -D 系统属性覆盖
+ */
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("http.port", 8080);
+
+    /**
+     * 连接超时（毫秒，0为不限制）：收齐请求头、读请求体和写响应时两次进展之间、长连接空闲等待下一个请求，
+     * 以及检查超时的刻度；见 ConnectionTimeouts
+     */
+    static final long HEADER_TIMEOUT_MILLIS = Long.getLong("http.timeout.headerMillis", 10_000);
+    static final long BODY_TIMEOUT_MILLIS = Long.getLong("http.timeout.bodyMillis", 30_000);
+    static final long WRITE_TIMEOUT_MILLIS = Long.getLong("http.timeout.writeMillis", 30_000);
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("http.timeout.idleMillis", 15_000);
+    static final long TIMEOUT_TICK_MILLIS = Long.getLong("http.timeout.tickMillis", 100);
+
+    /**
+     * 一个长连接上最多处理的请求数，达到后响应带 Connection: close 并关闭连接
+     */
+    static final int KEEP_ALIVE_MAX_REQUESTS = Integer.getInteger("http.keepAlive.maxRequests", 1000);
+
+    /**
+     * 连接执行方式：virtual 为每个连接一个虚拟线程，platform 为固定大小的平台线程池
+     */
+    static final String EXECUTOR = System.getProperty("http.executor", "virtual");
+    static final int POOL_SIZE = Integer.getInteger("http.poolSize", Runtime.getRuntime().availableProcessors() * 4);
+
+    /**
+     * 同时处理的最大连接数，达到上限后新连接留在内核 backlog 中等待
+     */
+    static final int MAX_CONNECTIONS = Integer.getInteger("http.maxConnections", 10000);
+
+    /**
+     * 内核中等待accept的连接队列长度，队列满后新的连接请求被拒绝
+     */
+    static final int ACCEPT_BACKLOG = Integer.getInteger("http.backlog", 1024);
+
+    /**
+     * 阻塞引擎同时处理的最大请求数；排队时延的目标值和观察窗口（毫秒），
+     * 窗口内最小排队时延持续超过目标时只等待目标时长，之后返回503，Retry-After 为建议的重试秒数
+     */
+    static final int MAX_CONCURRENT_REQUESTS = Integer.getInteger("http.maxConcurrentRequests",
+            Runtime.getRuntime().availableProcessors() * 64);
+    static final long SHED_TARGET_MILLIS = Long.getLong("http.shed.targetMillis", 5);
+    static final long SHED_INTERVAL_MILLIS = Long.getLong("http.shed.intervalMillis", 100);
+    static final long RETRY_AFTER_SECONDS = Long.getLong("http.shed.retryAfterSeconds", 1);
+
+    /**
+     * 每个客户端IP（IPv6按/64网段）每秒的请求数（0为不限流）、允许的突发请求数和限流表最多记录的客户端数，超出后新客户端共用一个桶
+     */
+    static final double RATE_LIMIT_PER_SECOND = Double.parseDouble(System.getProperty("http.rateLimit.perSecond", "0"));
+    static final int RATE_LIMIT_BURST = Integer.getInteger("http.rateLimit.burst", 100);
+    static final int RATE_LIMIT_MAX_CLIENTS = Integer.getInteger("http.rateLimit.maxClients", 100_000);
+
+    /**
+     * 服务器引擎：blocking 为每连接一个线程的阻塞模型，nio 为基于 Selector 的事件循环
+     */
+    static final String ENGINE = System.getProperty("http.engine", "blocking");
+    static final int EVENT_LOOPS = Integer.getInteger("http.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * NIO 引擎下请求行加请求头的最大字节数
+     */
+    static final int MAX_HEADER_SIZE = Integer.getInteger("http.maxHeaderSize", 16 * 1024);
+
+    /**
+     * 请求体最大字节数，超过时返回413
+     */
+    static final long MAX_BODY_SIZE = Long.getLong("http.maxBodySize", 256L * 1024 * 1024);
+
+    /**
+     * 需要整体读入内存的请求体（如表单）的最大字节数；NIO 引擎中更大的请求体边收边写入临时文件
+     */
+    static final int MAX_BUFFERED_BODY_SIZE = Integer.getInteger("http.maxBufferedBodySize", 1024 * 1024);
+
+    /**
+     * 表单和查询字符串中允许的最大参数个数
+     */
+    static final int MAX_FORM_PARAMS = Integer.getInteger("http.form.maxParams", 256);
+
+    /**
+     * 流水线请求的响应最多合并多少个、多少字节后写出一次，限制连接上积压的响应占用的内存
+     */
+    static final int PIPELINE_DEPTH = Integer.getInteger("http.pipelineDepth", 16);
+    static final int PIPELINE_BATCH_BYTES = Integer.getInteger("http.pipelineBatchBytes", 64 * 1024);
+
+    /**
+     * 静态文件缓存的总字节数、单个文件上限（更大的文件直接零拷贝发送）和修改时间检查间隔
+     */
+    static final long ASSET_CACHE_BYTES = Long.getLong("http.assetCache.bytes", 64L * 1024 * 1024);
+    static final long ASSET_CACHE_MAX_ENTRY_BYTES = Long.getLong("http.assetCache.maxEntryBytes", 1024 * 1024);
+    static final long ASSET_CACHE_CHECK_INTERVAL = Long.getLong("http.assetCache.checkIntervalMillis", 1000);
+
+    /**
+     * 图片存储目录，图片按内容哈希分目录保存在其下的 objects 中
+     */
+    static final String IMAGE_STORE_DIR = System.getProperty("http.images.dir", "images");
+
+    /**
+     * 用户存储目录；日志超过多少字节或距上次快照多久后生成快照；组提交是否 fsync
+     */
+    static final String USER_STORE_DIR = System.getProperty("http.users.dir", "data");
+    static final long USER_LOG_COMPACT_BYTES = Long.getLong("http.users.compactBytes", 4L * 1024 * 1024);
+    static final long USER_SNAPSHOT_INTERVAL = Long.getLong("http.users.snapshotIntervalMillis", 10 * 60 * 1000);
+    static final boolean USER_LOG_FSYNC = Boolean.parseBoolean(System.getProperty("http.users.fsync", "true"));
+
+    /**
+     * 密码哈希 PBKDF2-HMAC-SHA256 的迭代次数，修改后旧账号在下次登录时重新哈希；
+     * 计算哈希的线程数，哈希不在连接线程或事件循环上执行
+     */
+    static final int PASSWORD_ITERATIONS = Math.max(1, Integer.getInteger("http.users.passwordIterations", 600_000));
+    static final int PASSWORD_HASH_THREADS = Math.max(1, Integer.getInteger("http.users.hashThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * 响应压缩：是否启用、小于多少字节的响应体不压缩、压缩级别（1-9）
+     */
+    static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("http.compression.enabled", "true"));
+    static final int COMPRESSION_MIN_SIZE = Integer.getInteger("http.compression.minSize", 256);
+    static final int COMPRESSION_LEVEL = Integer.getInteger("http.compression.level", 6);
+
+    /**
+     * 会话的空闲过期时间（秒，每次使用后顺延）和最大会话数
+     */
+    static final int SESSION_TTL_SECONDS = Integer.getInteger("http.sessions.ttlSeconds", 30 * 60);
+    static final int MAX_SESSIONS = Integer.getInteger("http.sessions.max", 1_000_000);
+
+    private ServerConfig() {
+    }
+}
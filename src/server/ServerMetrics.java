@@ -0,0 +1,244 @@
+package server;
+
+import common.Histogram;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器运行指标，按Prometheus文本格式导出
+ * <p>
+ * 计数使用 LongAdder，耗时使用 {@link Histogram}；每个路由的指标对象在注册路由时创建，
+ * 各状态码的指标在第一次出现时创建，之后的记录不加锁也不分配对象
+ */
+final class ServerMetrics {
+    //导出直方图时使用的桶边界：1微秒到约68秒之间的每个2的幂（纳秒）
+    private static final long[] EXPORT_LIMITS = new long[27];
+
+    static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+    static final LongAdder IDLE_CONNECTIONS = new LongAdder();
+    static final LongAdder BYTES_RECEIVED = new LongAdder();
+    static final LongAdder BYTES_SENT = new LongAdder();
+    //准入控制和限流，见 AdmissionControl 和 RateLimiter
+    static final LongAdder REQUESTS_IN_FLIGHT = new LongAdder();
+    static final LongAdder QUEUE_DELAY_NANOS = new LongAdder();
+    static final LongAdder SHED_REQUESTS = new LongAdder();
+    static final LongAdder RATE_LIMITED_REQUESTS = new LongAdder();
+    static final LongAdder RATE_LIMIT_UNTRACKED = new LongAdder();
+    //达到单个长连接最大请求数而关闭的连接，超时关闭的连接见 ConnectionTimeouts.Phase
+    static final LongAdder KEEP_ALIVE_EXHAUSTED = new LongAdder();
+
+    private static final List<RouteMetrics> routes = new CopyOnWriteArrayList<>();
+    /**
+     * 没有匹配到路由的请求（404）以及在路由之前就被拒绝的请求
+     */
+    static final RouteMetrics UNMATCHED = route("*", "unmatched");
+
+    static {
+        for (int i = 0; i < EXPORT_LIMITS.length; i++) {
+            EXPORT_LIMITS[i] = 1L << (i + 10);
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * 一个路由（方法和路径模式）的指标
+     */
+    static final class RouteMetrics {
+        private final String labels;
+        private final AtomicReferenceArray<StatusMetrics> statuses = new AtomicReferenceArray<>(600);
+
+        private RouteMetrics(String method, String route) {
+            this.labels = "method=\"" + method + "\",route=\"" + route + "\"";
+        }
+
+        void record(int status, long parseNanos, long handlerNanos, long writeNanos) {
+            int index = status >= 0 && status < 600 ? status : 0;
+            StatusMetrics metrics = statuses.get(index);
+            if (metrics == null) {
+                statuses.compareAndSet(index, null, new StatusMetrics());
+                metrics = statuses.get(index);
+            }
+            metrics.requests.increment();
+            metrics.parse.record(parseNanos);
+            metrics.handler.record(handlerNanos);
+            metrics.write.record(writeNanos);
+        }
+    }
+
+    private static final class StatusMetrics {
+        final LongAdder requests = new LongAdder();
+        final Histogram parse = new Histogram();
+        final Histogram handler = new Histogram();
+        final Histogram write = new Histogram();
+    }
+
+    /**
+     * 创建并登记路由的指标对象，在注册路由时调用
+     */
+    static RouteMetrics route(String method, String route) {
+        RouteMetrics metrics = new RouteMetrics(method, route);
+        routes.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * 记录一次请求/响应交换
+     *
+     * @param routeNanos 路由调用的总耗时，其中写出响应的时间单独计入写出耗时
+     */
+    static void record(HttpRequest request, HttpResponse response, long routeNanos) {
+        RouteMetrics route = response.getRouteMetrics() != null ? response.getRouteMetrics() : UNMATCHED;
+        long writeNanos = response.getWriteNanos();
+        route.record(response.getStatusCode(), request.getParseNanos(),
+                Math.max(0, routeNanos - writeNanos), writeNanos);
+    }
+
+    static void connectionOpened() {
+        IDLE_CONNECTIONS.increment();
+    }
+
+    /**
+     * 连接开始处理请求
+     */
+    static void connectionActive() {
+        IDLE_CONNECTIONS.decrement();
+        ACTIVE_CONNECTIONS.increment();
+    }
+
+    /**
+     * 响应已发出，连接等待下一个请求
+     */
+    static void connectionIdle() {
+        ACTIVE_CONNECTIONS.decrement();
+        IDLE_CONNECTIONS.increment();
+    }
+
+    static void connectionClosed(boolean active) {
+        (active ? ACTIVE_CONNECTIONS : IDLE_CONNECTIONS).decrement();
+    }
+
+    /**
+     * 统计从套接字读入的字节数
+     */
+    static InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_RECEIVED.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    BYTES_RECEIVED.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 按Prometheus文本格式（0.0.4）输出全部指标
+     */
+    static void writeTo(StringBuilder out) {
+        header(out, "http_requests_total", "counter", "按路由和状态码统计的请求数");
+        forEachStatus((labels, metrics) -> sample(out, "http_requests_total", labels, metrics.requests.sum()));
+        histogram(out, "http_request_parse_seconds", "从收到请求第一个字节到请求头解析完成的耗时", m -> m.parse);
+        histogram(out, "http_request_handler_seconds", "处理函数耗时，不含写出响应", m -> m.handler);
+        histogram(out, "http_response_write_seconds", "写出响应的耗时（NIO引擎为放入发送队列的耗时）", m -> m.write);
+
+        header(out, "http_connections", "gauge", "当前连接数，active为正在处理请求，idle为等待下一个请求");
+        sample(out, "http_connections", "state=\"active\"", ACTIVE_CONNECTIONS.sum());
+        sample(out, "http_connections", "state=\"idle\"", IDLE_CONNECTIONS.sum());
+        counter(out, "http_received_bytes_total", "从客户端读入的字节数", BYTES_RECEIVED.sum());
+        counter(out, "http_sent_bytes_total", "写给客户端的字节数", BYTES_SENT.sum());
+        header(out, "http_connection_timeouts_total", "counter", "按所处阶段统计的超时关闭的连接数");
+        for (ConnectionTimeouts.Phase phase : ConnectionTimeouts.Phase.values()) {
+            sample(out, "http_connection_timeouts_total", "phase=\"" + phase.label() + "\"", phase.timeouts.sum());
+        }
+        counter(out, "http_keepalive_exhausted_total", "达到长连接最大请求数而关闭的连接数", KEEP_ALIVE_EXHAUSTED.sum());
+
+        gauge(out, "http_requests_in_flight", "已获得处理许可、正在处理的请求数", REQUESTS_IN_FLIGHT.sum());
+        header(out, "http_admission_queue_seconds_total", "counter", "请求等待处理许可的总时长");
+        out.append("http_admission_queue_seconds_total ").append(seconds(QUEUE_DELAY_NANOS.sum())).append('\n');
+        counter(out, "http_shed_requests_total", "排队过久被拒绝（503）的请求数", SHED_REQUESTS.sum());
+        counter(out, "http_rate_limited_requests_total", "超出客户端IP限流被拒绝（429）的请求数",
+                RATE_LIMITED_REQUESTS.sum());
+        counter(out, "http_rate_limit_untracked_total", "限流表已满、按共享溢出桶限流的请求数", RATE_LIMIT_UNTRACKED.sum());
+    }
+
+    static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        sample(out, name, null, value);
+    }
+
+    static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, null, value);
+    }
+
+    private interface StatusVisitor {
+        void visit(String labels, StatusMetrics metrics);
+    }
+
+    private interface HistogramSelector {
+        Histogram select(StatusMetrics metrics);
+    }
+
+    private static void forEachStatus(StatusVisitor visitor) {
+        for (RouteMetrics route : routes) {
+            for (int status = 0; status < route.statuses.length(); status++) {
+                StatusMetrics metrics = route.statuses.get(status);
+                if (metrics != null) {
+                    visitor.visit(route.labels + ",status=\"" + status + "\"", metrics);
+                }
+            }
+        }
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, HistogramSelector selector) {
+        header(out, name, "histogram", help);
+        forEachStatus((labels, metrics) -> {
+            Histogram histogram = selector.select(metrics);
+            long count = histogram.count();
+            long[] cumulative = histogram.cumulativeCounts(EXPORT_LIMITS);
+            for (int i = 0; i < EXPORT_LIMITS.length; i++) {
+                sample(out, name + "_bucket", labels + ",le=\"" + seconds(EXPORT_LIMITS[i]) + "\"",
+                        Math.min(cumulative[i], count));
+            }
+            sample(out, name + "_bucket", labels + ",le=\"+Inf\"", count);
+            out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.sum())).append('\n');
+            sample(out, name + "_count", labels, count);
+        });
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,345 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的会话表：登录成功后发放不透明的令牌，之后的请求凭令牌识别用户
+ * <p>
+ * 按令牌分为多个段，各段独立加锁；段内的会话按编号存放在并列的基本类型数组中，
+ * 令牌（128位随机数）拆成两个long，开放寻址的索引数组只存编号，每个会话约占50字节且不产生对象。
+ * 每次验证把到期时间顺延一个TTL（滑动过期），到期由段内的时间轮每秒清理；
+ * 时间轮只按登记时的到期时间触发，触发时发现已被顺延的会话重新登记。
+ * 会话总数有上限，段满时淘汰最早到期的会话
+ */
+class SessionStore {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final int TOKEN_CHARS = 32;
+    //多个随机数生成器分摊登录时的锁竞争
+    private static final SecureRandom[] RANDOMS = new SecureRandom[16];
+
+    static {
+        for (int i = 0; i < RANDOMS.length; i++) {
+            RANDOMS[i] = new SecureRandom();
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int ttlSeconds;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    SessionStore(int ttlSeconds, int maxSessions) {
+        this.ttlSeconds = ttlSeconds;
+        int segmentCapacity = Math.max(INITIAL_SEGMENT_CAPACITY, maxSessions / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity, ttlSeconds);
+        }
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("session-reaper").factory());
+        reaper.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 为用户创建会话，返回令牌
+     */
+    String create(String username) {
+        SecureRandom random = RANDOMS[(int) (Thread.currentThread().threadId() & (RANDOMS.length - 1))];
+        long high = random.nextLong();
+        long low = random.nextLong();
+        segmentFor(low).add(high, low, username, now());
+        created.increment();
+        return HexFormat.of().toHexDigits(high) + HexFormat.of().toHexDigits(low);
+    }
+
+    /**
+     * 验证令牌并顺延到期时间，返回用户名；令牌无效或已过期时返回null
+     */
+    String validate(String token) {
+        if (token == null || token.length() != TOKEN_CHARS) {
+            return null;
+        }
+        long high;
+        long low;
+        try {
+            high = HexFormat.fromHexDigitsToLong(token, 0, 16);
+            low = HexFormat.fromHexDigitsToLong(token, 16, 32);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return segmentFor(low).touch(high, low, now());
+    }
+
+    /**
+     * 使令牌立即失效
+     */
+    boolean invalidate(String token) {
+        if (token == null || token.length() != TOKEN_CHARS) {
+            return false;
+        }
+        try {
+            long high = HexFormat.fromHexDigitsToLong(token, 0, 16);
+            long low = HexFormat.fromHexDigitsToLong(token, 16, 32);
+            return segmentFor(low).remove(high, low);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    long created() {
+        return created.sum();
+    }
+
+    long expired() {
+        return expired.sum();
+    }
+
+    long evicted() {
+        return evicted.sum();
+    }
+
+    private void expire() {
+        long now = now();
+        for (Segment segment : segments) {
+            segment.expire(now);
+        }
+    }
+
+    private Segment segmentFor(long low) {
+        return segments[(int) (low >>> 58) & (SEGMENTS - 1)];
+    }
+
+    //以秒为刻度
+    private long now() {
+        return (System.nanoTime() - startNanos) / 1_000_000_000L;
+    }
+
+    private final class Segment {
+        private static final int EMPTY = 0;
+
+        private final int maxSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TimerWheel wheel;
+
+        //按会话编号索引
+        private long[] tokenHigh = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] tokenLow = new long[INITIAL_SEGMENT_CAPACITY];
+        private int[] expiresAt = new int[INITIAL_SEGMENT_CAPACITY];
+        private String[] users = new String[INITIAL_SEGMENT_CAPACITY];
+        //开放寻址的索引，值为编号加一，0为空
+        private int[] index = new int[INITIAL_SEGMENT_CAPACITY * 2];
+        //空闲编号栈
+        private int[] free = new int[0];
+        private int freeCount;
+        //已分配过的最大编号加一
+        private int allocated;
+        private int size;
+
+        Segment(int maxSize, int ttlSeconds) {
+            this.maxSize = maxSize;
+            this.wheel = new TimerWheel(Math.min(ttlSeconds + 1, 4096), 0);
+            wheel.ensureCapacity(INITIAL_SEGMENT_CAPACITY);
+        }
+
+        void add(long high, long low, String username, long now) {
+            lock.lock();
+            try {
+                if (size >= maxSize) {
+                    evictEarliest();
+                }
+                int entry = allocate();
+                tokenHigh[entry] = high;
+                tokenLow[entry] = low;
+                users[entry] = username;
+                expiresAt[entry] = (int) (now + ttlSeconds);
+                insertIndex(entry);
+                wheel.schedule(entry, expiresAt[entry]);
+                size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 淘汰最早到期的会话。时间轮中的刻度可能早于被顺延后的到期时间，
+         * 这样的会话先按实际到期时间重新登记，再重新挑选
+         */
+        private void evictEarliest() {
+            while (true) {
+                int victim = wheel.earliest();
+                if (victim < 0) {
+                    return;
+                }
+                if (wheel.deadline(victim) < expiresAt[victim]) {
+                    wheel.schedule(victim, expiresAt[victim]);
+                    continue;
+                }
+                delete(victim);
+                evicted.increment();
+                return;
+            }
+        }
+
+        String touch(long high, long low, long now) {
+            lock.lock();
+            try {
+                int entry = find(high, low);
+                if (entry < 0 || expiresAt[entry] <= now) {
+                    return null;
+                }
+                //只更新到期时间，时间轮触发时再按新的到期时间重新登记
+                expiresAt[entry] = (int) (now + ttlSeconds);
+                return users[entry];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean remove(long high, long low) {
+            lock.lock();
+            try {
+                int entry = find(high, low);
+                if (entry < 0) {
+                    return false;
+                }
+                delete(entry);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void expire(long now) {
+            lock.lock();
+            try {
+                wheel.advance(now, entry -> {
+                    if (expiresAt[entry] > now) {
+                        wheel.schedule(entry, expiresAt[entry]);
+                    } else {
+                        delete(entry);
+                        expired.increment();
+                    }
+                });
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            int entry = allocated++;
+            if (entry == tokenHigh.length) {
+                int length = entry * 2;
+                tokenHigh = Arrays.copyOf(tokenHigh, length);
+                tokenLow = Arrays.copyOf(tokenLow, length);
+                expiresAt = Arrays.copyOf(expiresAt, length);
+                users = Arrays.copyOf(users, length);
+                wheel.ensureCapacity(length);
+                rehash(length * 2);
+            }
+            return entry;
+        }
+
+        /**
+         * 从时间轮和索引中删除并回收编号
+         */
+        private void delete(int entry) {
+            wheel.cancel(entry);
+            removeIndex(entry);
+            users[entry] = null;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, Math.max(16, free.length * 2));
+            }
+            free[freeCount++] = entry;
+            size--;
+        }
+
+        private int find(long high, long low) {
+            int mask = index.length - 1;
+            for (int i = slot(low, mask); ; i = (i + 1) & mask) {
+                int value = index[i];
+                if (value == EMPTY) {
+                    return -1;
+                }
+                int entry = value - 1;
+                if (tokenLow[entry] == low && tokenHigh[entry] == high) {
+                    return entry;
+                }
+            }
+        }
+
+        private void insertIndex(int entry) {
+            int mask = index.length - 1;
+            int i = slot(tokenLow[entry], mask);
+            while (index[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            index[i] = entry + 1;
+        }
+
+        /**
+         * 线性探测的删除：把后面探测链上的项前移填补空位，不使用墓碑
+         */
+        private void removeIndex(int entry) {
+            int mask = index.length - 1;
+            int i = slot(tokenLow[entry], mask);
+            while (index[i] != entry + 1) {
+                i = (i + 1) & mask;
+            }
+            int gap = i;
+            for (int j = (gap + 1) & mask; index[j] != EMPTY; j = (j + 1) & mask) {
+                int home = slot(tokenLow[index[j] - 1], mask);
+                //home 不在 (gap, j] 区间内时，该项可以移到空位
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    index[gap] = index[j];
+                    gap = j;
+                }
+            }
+            index[gap] = EMPTY;
+        }
+
+        private void rehash(int length) {
+            int[] old = index;
+            index = new int[length];
+            for (int value : old) {
+                if (value != EMPTY) {
+                    insertIndex(value - 1);
+                }
+            }
+        }
+
+        private static int slot(long low, int mask) {
+            //令牌本身是随机数，直接取低位
+            return (int) low & mask;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 阻塞模式下的响应输出，所有数据在调用返回时已写入套接字
+ * <p>
+ * 有套接字通道时文件区域通过 FileChannel.transferTo 发送，由内核直接拷贝；
+ * 只有输出流时由 transferTo 内部经内存映射写入流
+ * <p>
+ * 开启合并写时，内存中的响应数据先累积（不复制缓冲区），响应结束时不立即写出，
+ * 由连接循环在没有后续流水线请求时调用 {@link #flush()}，或在达到数量、字节上限时一次聚集写出
+ * <p>
+ * 有连接超时状态时，数据按 {@link #WRITE_SLICE_SIZE} 分段写入套接字，每段之前进入写响应阶段，
+ * 慢速读取的客户端只要每段都有进展就不会超时，停滞超过写超时的连接被关闭
+ */
+class StreamResponseOutput implements ResponseOutput {
+    private static final long MAPPED_CHUNK_SIZE = 4 * 1024 * 1024;
+    //一次阻塞写的最大字节数，写超时按段顺延
+    private static final int WRITE_SLICE_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+    private final WritableByteChannel channel;
+    private final boolean batching;
+    private final ConnectionTimeouts.Timer timer;
+    //暂缓写出的缓冲区，以及其中的字节数和完整响应数
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private long batchBytes;
+    private int batchResponses;
+
+    StreamResponseOutput(OutputStream outputStream, WritableByteChannel channel) {
+        this(outputStream, channel, false);
+    }
+
+    /**
+     * @param batching 是否合并多个响应的写出，只在有聚集写通道时生效，调用方负责最终调用 {@link #flush()}
+     */
+    StreamResponseOutput(OutputStream outputStream, WritableByteChannel channel, boolean batching) {
+        this(outputStream, channel, batching, null);
+    }
+
+    /**
+     * @param timer 连接的超时状态，为null时不检查写超时
+     */
+    StreamResponseOutput(OutputStream outputStream, WritableByteChannel channel, boolean batching,
+                         ConnectionTimeouts.Timer timer) {
+        this.outputStream = outputStream;
+        this.channel = channel != null ? channel : Channels.newChannel(outputStream);
+        this.batching = batching && this.channel instanceof GatheringByteChannel;
+        this.timer = timer;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        writeBatch();
+        for (int end = off + len; off < end; ) {
+            int n = Math.min(end - off, WRITE_SLICE_SIZE);
+            writing();
+            outputStream.write(b, off, n);
+            ServerMetrics.BYTES_SENT.add(n);
+            off += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer... buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            for (ByteBuffer buffer : buffers) {
+                batch.add(buffer);
+                batchBytes += buffer.remaining();
+            }
+            if (!batching || batchBytes >= ServerConfig.PIPELINE_BATCH_BYTES) {
+                writeBatch();
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            }
+        }
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        //文件数据直接写入通道之前先把流中已有的数据写出，保证顺序
+        writeBatch();
+        outputStream.flush();
+        while (count > 0) {
+            writing();
+            long n = file.transferTo(position, Math.min(count, WRITE_SLICE_SIZE), channel);
+            if (n <= 0) {
+                if (position >= file.size()) {
+                    throw new IOException("文件长度小于预期");
+                }
+                //虚拟线程下套接字底层处于非阻塞模式，发送缓冲区满时transferTo直接返回0，
+                //此时改为写出一段内存映射区域，由通道的阻塞写等待可写
+                n = writeMapped(file, position, Math.min(count, MAPPED_CHUNK_SIZE));
+            }
+            position += n;
+            count -= n;
+            ServerMetrics.BYTES_SENT.add(n);
+        }
+    }
+
+    private long writeMapped(FileChannel file, long position, long count) throws IOException {
+        MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, position, count);
+        while (mapped.hasRemaining()) {
+            ByteBuffer slice = mapped.duplicate();
+            slice.limit(Math.min(slice.limit(), slice.position() + WRITE_SLICE_SIZE));
+            writing();
+            mapped.position(mapped.position() + channel.write(slice));
+        }
+        return count;
+    }
+
+    /**
+     * 聚集写出累积的缓冲区，每次写出不超过一段
+     */
+    private void writeBatch() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        outputStream.flush();
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        long remaining = batchBytes;
+        batch.clear();
+        batchBytes = 0;
+        batchResponses = 0;
+        GatheringByteChannel gathering = (GatheringByteChannel) channel;
+        int first = 0;
+        while (remaining > 0) {
+            while (!buffers[first].hasRemaining()) {
+                first++;
+            }
+            writing();
+            long n = writeSlice(gathering, buffers, first);
+            remaining -= n;
+            ServerMetrics.BYTES_SENT.add(n);
+        }
+    }
+
+    /**
+     * 从 buffers[first] 开始写出不超过 {@link #WRITE_SLICE_SIZE} 的数据，
+     * 单个缓冲区超过一段时只写它的一部分
+     */
+    private static long writeSlice(GatheringByteChannel gathering, ByteBuffer[] buffers, int first)
+            throws IOException {
+        ByteBuffer head = buffers[first];
+        if (head.remaining() >= WRITE_SLICE_SIZE) {
+            ByteBuffer slice = head.duplicate();
+            slice.limit(slice.position() + WRITE_SLICE_SIZE);
+            int n = gathering.write(slice);
+            head.position(head.position() + n);
+            return n;
+        }
+        int last = first;
+        long bytes = 0;
+        while (last < buffers.length && bytes + buffers[last].remaining() <= WRITE_SLICE_SIZE) {
+            bytes += buffers[last++].remaining();
+        }
+        return gathering.write(buffers, first, last - first);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBatch();
+        writing();
+        outputStream.flush();
+    }
+
+    @Override
+    public void endResponse() throws IOException {
+        if (batching && !batch.isEmpty() && ++batchResponses < ServerConfig.PIPELINE_DEPTH) {
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * 即将写入套接字，写超时从此刻起算
+     */
+    private void writing() {
+        if (timer != null) {
+            timer.enter(ConnectionTimeouts.Phase.WRITE);
+        }
+    }
+
+    @Override
+    public void release(Closeable resource) throws IOException {
+        resource.close();
+    }
+}
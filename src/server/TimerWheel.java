@@ -0,0 +1,143 @@
+package server;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 哈希时间轮，条目以整数编号表示，由调用方在自己的数组中保存条目数据
+ * <p>
+ * 每个槽是一个双向链表，链表指针和到期刻度也保存在按编号索引的数组中，不为每个条目分配对象，
+ * 登记和取消都是O(1)。到期刻度超过一圈的条目在轮转到时重新挂到对应的槽上。
+ * 不是线程安全的，由调用方加锁或限制在单个线程中使用
+ */
+final class TimerWheel {
+    private static final int NONE = -1;
+
+    private final int mask;
+    private final int[] heads;
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+    private long[] deadlines = new long[0];
+    //已处理到的刻度
+    private long currentTick;
+
+    /**
+     * @param slots 槽数，向上取整为2的幂
+     * @param startTick 起始刻度，之前的刻度视为已处理
+     */
+    TimerWheel(int slots, long startTick) {
+        int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.mask = size - 1;
+        this.heads = new int[size];
+        Arrays.fill(heads, NONE);
+        this.currentTick = startTick;
+    }
+
+    /**
+     * 确保可以登记编号小于 capacity 的条目
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= next.length) {
+            return;
+        }
+        int oldLength = next.length;
+        int length = Math.max(capacity, oldLength * 2);
+        next = Arrays.copyOf(next, length);
+        prev = Arrays.copyOf(prev, length);
+        deadlines = Arrays.copyOf(deadlines, length);
+        Arrays.fill(next, oldLength, length, NONE);
+        Arrays.fill(prev, oldLength, length, NONE);
+    }
+
+    /**
+     * 登记条目在 deadline 刻度到期，已登记的条目先取消；早于当前刻度的在下一次推进时到期
+     */
+    void schedule(int entry, long deadline) {
+        cancel(entry);
+        deadline = Math.max(deadline, currentTick + 1);
+        deadlines[entry] = deadline;
+        link(entry, (int) (deadline & mask));
+    }
+
+    /**
+     * 取消条目，未登记时什么也不做
+     */
+    void cancel(int entry) {
+        if (entry >= next.length || !isScheduled(entry)) {
+            return;
+        }
+        int slot = (int) (deadlines[entry] & mask);
+        if (prev[entry] != NONE) {
+            next[prev[entry]] = next[entry];
+        } else {
+            heads[slot] = next[entry];
+        }
+        if (next[entry] != NONE) {
+            prev[next[entry]] = prev[entry];
+        }
+        next[entry] = NONE;
+        prev[entry] = NONE;
+        deadlines[entry] = 0;
+    }
+
+    boolean isScheduled(int entry) {
+        return deadlines[entry] != 0;
+    }
+
+    /**
+     * 条目登记的到期刻度，未登记时为0
+     */
+    long deadline(int entry) {
+        return deadlines[entry];
+    }
+
+    /**
+     * 推进到 tick，依次处理经过的槽。到期的条目先从时间轮移除再交给 expired，
+     * expired 可以重新登记该条目，但不能取消其他条目
+     */
+    void advance(long tick, IntConsumer expired) {
+        while (currentTick < tick) {
+            long processing = currentTick + 1;
+            int slot = (int) (processing & mask);
+            int entry = heads[slot];
+            while (entry != NONE) {
+                int following = next[entry];
+                if (deadlines[entry] <= processing) {
+                    cancel(entry);
+                    expired.accept(entry);
+                }
+                entry = following;
+            }
+            currentTick = processing;
+        }
+    }
+
+    /**
+     * 最早到期的一个条目，用于容量满时淘汰；没有条目时返回-1
+     */
+    int earliest() {
+        int best = NONE;
+        for (int i = 0; i <= mask; i++) {
+            int slot = (int) ((currentTick + 1 + i) & mask);
+            for (int entry = heads[slot]; entry != NONE; entry = next[entry]) {
+                if (best == NONE || deadlines[entry] < deadlines[best]) {
+                    best = entry;
+                }
+            }
+            if (best != NONE && deadlines[best] <= currentTick + 1 + i) {
+                return best;
+            }
+        }
+        return best;
+    }
+
+    private void link(int entry, int slot) {
+        int head = heads[slot];
+        next[entry] = head;
+        prev[entry] = NONE;
+        if (head != NONE) {
+            prev[head] = entry;
+        }
+        heads[slot] = entry;
+    }
+}
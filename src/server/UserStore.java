@@ -0,0 +1,38 @@
+package server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 用户账号存储，实现必须是线程安全的
+ * <p>
+ * 密码哈希和持久化都很慢，注册和登录返回 CompletableFuture，不阻塞调用线程（NIO引擎的事件循环）
+ */
+interface UserStore {
+    /**
+     * 注册用户，账号持久化后完成为true；用户名已存在时为false，写入失败时异常完成
+     */
+    CompletableFuture<Boolean> register(String username, String password);
+
+    /**
+     * 校验用户名和密码，登录之间不竞争锁
+     */
+    CompletableFuture<Boolean> authenticate(String username, String password);
+
+    /**
+     * 已持久化的账号数
+     */
+    int size();
+
+    /**
+     * 存储的统计，供 /metrics 导出；不使用日志的实现中日志相关的值为0
+     */
+    Stats stats();
+
+    /**
+     * @param logBytes         日志的字节数
+     * @param commits          日志组提交次数
+     * @param committedRecords 日志提交的记录数
+     */
+    record Stats(int users, long logBytes, long commits, long committedRecords) {
+    }
+}